@@ -1,9 +1,32 @@
 package org.embulk.output.hdfs;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import org.apache.hadoop.fs.Path;
 import org.embulk.config.TaskReport;
 import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.BlockCompression;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.Container;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.NamespaceAssignment;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.QuotaCheck;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.Staging;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.Verify;
+import org.embulk.output.hdfs.client.AsyncCloser;
+import org.embulk.output.hdfs.client.BgzfOutputStream;
+import org.embulk.output.hdfs.client.ContainerWriter;
 import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.client.LocalStagingUploader;
+import org.embulk.output.hdfs.client.QuotaGuard;
+import org.embulk.output.hdfs.client.StreamLimiter;
+import org.embulk.output.hdfs.client.StreamPreOpener;
+import org.embulk.output.hdfs.metrics.HdfsFileOutputMetrics;
+import org.embulk.output.hdfs.metrics.HdfsOutputAggregate;
+import org.embulk.output.hdfs.metrics.MBeans;
+import org.embulk.output.hdfs.util.Namespaces;
+import org.embulk.output.hdfs.util.SamplePath;
 import org.embulk.spi.Buffer;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FileOutput;
@@ -11,12 +34,28 @@ import org.embulk.spi.TransactionalFileOutput;
 import org.embulk.spi.util.RetryExecutor;
 import org.slf4j.Logger;
 
+import javax.management.ObjectName;
+
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
 
 public class HdfsFileOutput
         implements FileOutput, TransactionalFileOutput
 {
+    public static final String WRITTEN_PATHS = "written_paths";
+    public static final String WRITTEN_FILES = "written_files";
+    public static final String TASK_INDEX = "task_index";
+    public static final String BYTES_WRITTEN = "bytes_written";
+    public static final String SKIPPED_FILES = "skipped_files";
+    public static final String SKIPPED_BYTES = "skipped_bytes";
+    public static final String LATENCY = "latency";
+    public static final String RPC_COUNTS = "rpc_counts";
+    public static final String RPC_WAIT_MS = "rpc_wait_ms";
+
     private static final Logger logger = Exec.getLogger(HdfsFileOutput.class);
     private final RetryExecutor re = RetryExecutor.retryExecutor()
             .withRetryLimit(3)
@@ -25,23 +64,90 @@ public class HdfsFileOutput
 
     private final HdfsClient hdfsClient;
     private final int taskIdx;
+    private final int sequenceTaskOffset;
     private final String pathPrefix;
+    private final String outputDir;
     private final String sequenceFormat;
     private final String fileExt;
+    private final BlockCompression blockCompression;
     private final boolean overwrite;
+    private final boolean precreateDirectories;
+    private final Verify verify;
+    private final LocalStagingUploader stagingUploader;
+    private final Container container;
+    private final long containerMaxEntryBytes;
+    private ContainerWriter containerWriter = null;
+    private final List<String> namespaces;
+    private final NamespaceAssignment namespaceAssignment;
+    private final QuotaCheck quotaCheck;
+    private final Map<String, List<QuotaGuard>> quotaGuards = Maps.newHashMap();
+    private List<QuotaGuard> currentQuotaGuards = ImmutableList.of();
+    private final AsyncCloser asyncCloser;
+    private final StreamPreOpener streamPreOpener;
+    private final boolean reportWrittenPaths;
+    private final List<String> writtenPaths = Lists.newArrayList();
+    private final HdfsFileOutputMetrics metrics;
+    private final Optional<ObjectName> metricsName;
+    private final Optional<ObjectName> clientMetricsName;
 
     private int fileIdx = 0;
     private Path currentPath = null;
+    private String currentNamespace = null;
     private OutputStream o = null;
 
-    public HdfsFileOutput(PluginTask task, String pathPrefix, boolean overwrite, int taskIdx)
+    // The files are written with pathPrefix, and moved to outputPathPrefix by the transaction if they differ.
+    public HdfsFileOutput(PluginTask task, String pathPrefix, String outputPathPrefix, String fileExt, boolean overwrite,
+            boolean reportWrittenPaths, int taskIdx)
     {
         this.hdfsClient = HdfsClient.build(task);
         this.pathPrefix = pathPrefix;
+        this.outputDir = SamplePath.getDir(outputPathPrefix, task.getSequenceFormat(), fileExt);
         this.taskIdx = taskIdx;
+        this.sequenceTaskOffset = task.getSequenceTaskOffset();
         this.sequenceFormat = task.getSequenceFormat();
-        this.fileExt = task.getFileExt();
+        this.blockCompression = task.getBlockCompression();
+        if (blockCompression == BlockCompression.BGZF) {
+            this.fileExt = fileExt.isEmpty() ? BgzfOutputStream.EXTENSION : fileExt + "." + BgzfOutputStream.EXTENSION;
+        }
+        else {
+            this.fileExt = fileExt;
+        }
         this.overwrite = overwrite;
+        this.reportWrittenPaths = reportWrittenPaths;
+        this.precreateDirectories = task.getPrecreateDirectories();
+        this.verify = task.getVerify();
+        this.container = task.getContainer();
+        this.containerMaxEntryBytes = task.getContainerMaxEntryBytes();
+        this.namespaces = Namespaces.getRoots(task.getNamespaces());
+        this.namespaceAssignment = task.getNamespaceAssignment();
+        this.quotaCheck = task.getQuotaCheck();
+        if (task.getStaging() == Staging.LOCAL) {
+            String stagingDir = task.getStagingDir().or(System.getProperty("java.io.tmpdir"));
+            this.stagingUploader = new LocalStagingUploader(hdfsClient, stagingDir,
+                    task.getStagingMaxBytes(), task.getStagingUploadThreads(), task.getSkipUnchanged(),
+                    task.getSkipUnchangedReadBack());
+        }
+        else {
+            this.stagingUploader = null;
+        }
+        this.asyncCloser = task.getMaxInFlightCloses() > 0 ? new AsyncCloser(task.getMaxInFlightCloses()) : null;
+        this.streamPreOpener = task.getPreOpenNextFile() ? new StreamPreOpener(hdfsClient) : null;
+
+        this.metrics = new HdfsFileOutputMetrics(taskIdx, hdfsClient.getMetrics());
+        if (stagingUploader != null) {
+            metrics.setBuffersQueued(new Supplier<Integer>()
+            {
+                @Override
+                public Integer get()
+                {
+                    return stagingUploader.getPendingUploads();
+                }
+            });
+        }
+        long id = MBeans.nextId();
+        this.metricsName = MBeans.register(String.format("type=HdfsFileOutput,task=%d,id=%d", taskIdx, id), metrics);
+        this.clientMetricsName = MBeans.register(String.format("type=HdfsClient,task=%d,id=%d", taskIdx, id), hdfsClient.getMetrics());
+        HdfsOutputAggregate.getInstance().add(metrics);
     }
 
     @Override
@@ -52,13 +158,44 @@ public class HdfsFileOutput
     @Override
     public TaskReport commit()
     {
-        return Exec.newTaskReport();
+        TaskReport report = Exec.newTaskReport()
+                .set(TASK_INDEX, taskIdx)
+                .set(WRITTEN_FILES, writtenPaths.size())
+                .set(BYTES_WRITTEN, metrics.getBytesWritten());
+        if (reportWrittenPaths) {
+            report.set(WRITTEN_PATHS, writtenPaths);
+        }
+        if (stagingUploader != null) {
+            report.set(SKIPPED_FILES, stagingUploader.getSkippedFiles());
+            report.set(SKIPPED_BYTES, stagingUploader.getSkippedBytes());
+        }
+        TaskReport latency = Exec.newTaskReport();
+        hdfsClient.getMetrics().getLatencies().summarizeTo(latency);
+        metrics.getLatencies().summarizeTo(latency);
+        report.setNested(LATENCY, latency);
+        TaskReport rpcs = Exec.newTaskReport();
+        for (Map.Entry<String, Long> rpc : hdfsClient.getMetrics().getRpcCounts().entrySet()) {
+            rpcs.set(rpc.getKey(), rpc.getValue());
+        }
+        report.setNested(RPC_COUNTS, rpcs);
+        report.set(RPC_WAIT_MS, hdfsClient.getMetrics().getRpcWaitMillis());
+        if (hdfsClient.getStreamLimiter().isPresent()) {
+            StreamLimiter limiter = hdfsClient.getStreamLimiter().get();
+            logger.info("Output streams: open: {}, peak: {}, limit: {}",
+                    limiter.getOpenStreams(), limiter.getPeakOpenStreams(), limiter.getLimit());
+            report.setNested("stream_limiter", Exec.newTaskReport()
+                    .set("open_streams", limiter.getOpenStreams())
+                    .set("peak_open_streams", limiter.getPeakOpenStreams())
+                    .set("limit", limiter.getLimit()));
+        }
+        return report;
     }
 
     @Override
     public void nextFile()
     {
         closeCurrentStream();
+        currentNamespace = getNamespace(fileIdx);
         currentPath = newPath();
         fileIdx++;
     }
@@ -69,10 +206,12 @@ public class HdfsFileOutput
         try {
             // this implementation is for creating file when there is data.
             if (o == null) {
-                o = hdfsClient.create(currentPath, overwrite);
-                logger.info("Uploading '{}'", currentPath);
+                o = openStream(currentPath);
             }
             write(buffer);
+            for (QuotaGuard quotaGuard : currentQuotaGuards) {
+                quotaGuard.onWrite(buffer.limit());
+            }
         }
         catch (RetryExecutor.RetryGiveupException e) {
             throw new RuntimeException(e);
@@ -86,13 +225,137 @@ public class HdfsFileOutput
     public void finish()
     {
         closeCurrentStream();
+        if (asyncCloser != null) {
+            asyncCloser.await();
+        }
+        if (streamPreOpener != null) {
+            streamPreOpener.discard();
+        }
+        closeContainer();
+        if (stagingUploader != null) {
+            stagingUploader.awaitUploads();
+        }
     }
 
     @Override
     public void close()
     {
+        if (stagingUploader != null) {
+            // discard the files which are not uploaded yet.
+            stagingUploader.close();
+        }
         closeCurrentStream();
+        if (asyncCloser != null) {
+            asyncCloser.shutdown();
+        }
+        if (streamPreOpener != null) {
+            streamPreOpener.close();
+        }
+        closeContainer();
         hdfsClient.close();
+        HdfsOutputAggregate.getInstance().remove(metrics);
+        MBeans.unregister(metricsName);
+        MBeans.unregister(clientMetricsName);
+    }
+
+    private OutputStream openStream(Path path)
+    {
+        // NOTE: Each namespace has its own quota.
+        if (!quotaGuards.containsKey(currentNamespace)) {
+            quotaGuards.put(currentNamespace, QuotaGuard.build(hdfsClient, path.getParent(),
+                    new Path(Namespaces.resolve(currentNamespace, outputDir)), quotaCheck));
+        }
+        currentQuotaGuards = quotaGuards.get(currentNamespace);
+        for (QuotaGuard quotaGuard : currentQuotaGuards) {
+            quotaGuard.beforeOpen(path);
+        }
+        metrics.onOpen(path.toString());
+        if (container != Container.NONE) {
+            if (containerWriter == null) {
+                String ext = fileExt.isEmpty() ? container.getExtension() : fileExt + "." + container.getExtension();
+                Path containerPath = new Path(Namespaces.resolve(getNamespace(0), pathPrefix) + getSequence(0) + ext);
+                logger.info("Uploading '{}' into '{}'", path.getName(), containerPath);
+                containerWriter = hdfsClient.createContainer(containerPath, container, overwrite, containerMaxEntryBytes);
+                writtenPaths.add(containerPath.toString());
+            }
+            return containerWriter.newEntry(path.getName());
+        }
+        if (blockCompression == BlockCompression.BGZF) {
+            Path indexPath = path.suffix("." + BgzfOutputStream.INDEX_EXTENSION);
+            OutputStream out = createStream(path);
+            try {
+                return new BgzfOutputStream(out, createSideStream(indexPath), Deflater.DEFAULT_COMPRESSION);
+            }
+            catch (RuntimeException e) {
+                try {
+                    out.close();
+                }
+                catch (IOException | RuntimeException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+                throw e;
+            }
+        }
+        return createStream(path);
+    }
+
+    private OutputStream createStream(Path path)
+    {
+        writtenPaths.add(path.toString());
+        if (stagingUploader != null) {
+            logger.info("Staging '{}'", path);
+            return stagingUploader.stage(path, overwrite);
+        }
+        logger.info("Uploading '{}'", path);
+        OutputStream out;
+        if (streamPreOpener != null) {
+            Optional<OutputStream> preOpened = streamPreOpener.take(path);
+            out = preOpened.isPresent() ? preOpened.get() : hdfsClient.create(path, overwrite);
+            streamPreOpener.preOpen(newPath());
+        }
+        else if (isInPrecreatedDirectory(path)) {
+            out = hdfsClient.createNonRecursive(path, overwrite);
+        }
+        else {
+            out = hdfsClient.create(path, overwrite);
+        }
+        return verify == Verify.CHECKSUM ? hdfsClient.verifyOnClose(path, out) : out;
+    }
+
+    // The side file, e.g. the index, is created out of `max_open_streams`.
+    // Taking another permit while holding the one of the main file could deadlock the tasks.
+    private OutputStream createSideStream(Path path)
+    {
+        writtenPaths.add(path.toString());
+        if (stagingUploader != null) {
+            logger.info("Staging '{}'", path);
+            return stagingUploader.stage(path, overwrite);
+        }
+        logger.info("Uploading '{}'", path);
+        OutputStream out = hdfsClient.createSideFile(path, overwrite);
+        return verify == Verify.CHECKSUM ? hdfsClient.verifyOnClose(path, out) : out;
+    }
+
+    // The directory of the first file of this task is made in the transaction by `precreate_directories` option.
+    private boolean isInPrecreatedDirectory(Path path)
+    {
+        if (!precreateDirectories) {
+            return false;
+        }
+        Path firstFile = new Path(Namespaces.resolve(getNamespace(0), pathPrefix) + getSequence(0) + fileExt);
+        return path.getParent().equals(firstFile.getParent());
+    }
+
+    private void closeContainer()
+    {
+        if (containerWriter != null) {
+            try {
+                containerWriter.close();
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
     private void write(final Buffer buffer)
@@ -104,7 +367,11 @@ public class HdfsFileOutput
             public Void call()
                     throws Exception
             {
+                long startNanos = System.nanoTime();
                 o.write(buffer.array(), buffer.offset(), buffer.limit());
+                long nanos = System.nanoTime() - startNanos;
+                metrics.onWrite(buffer.limit(), nanos);
+                logIfSlow("write", currentPath, o, nanos);
                 return null;
             }
 
@@ -125,6 +392,7 @@ public class HdfsFileOutput
                         retryLimit,
                         retryWait);
                 logger.warn(m, exception);
+                metrics.onRetry();
             }
 
             @Override
@@ -135,26 +403,59 @@ public class HdfsFileOutput
         });
     }
 
+    private void logIfSlow(String operation, Path path, OutputStream stream, long nanos)
+    {
+        if (nanos > hdfsClient.getSlowOperationThresholdNanos()) {
+            logger.warn("Slow operation: {} {} took {} ms (pipeline: {})", operation, path,
+                    TimeUnit.NANOSECONDS.toMillis(nanos), HdfsClient.describePipeline(stream).or("unknown"));
+        }
+    }
+
     private Path newPath()
     {
-        return new Path(pathPrefix + getSequence() + fileExt);
+        return new Path(Namespaces.resolve(getNamespace(fileIdx), pathPrefix) + getSequence(fileIdx) + fileExt);
     }
 
-    private String getSequence()
+    private String getNamespace(int fileIdx)
     {
-        return String.format(sequenceFormat, taskIdx, fileIdx);
+        return namespaces.get(namespaceAssignment.select(namespaces.size(), sequenceTaskOffset + taskIdx, fileIdx));
+    }
+
+    private String getSequence(int fileIdx)
+    {
+        return String.format(sequenceFormat, sequenceTaskOffset + taskIdx, fileIdx);
     }
 
     private void closeCurrentStream()
     {
-        if (o != null) {
-            try {
-                o.close();
-                o = null;
-            }
-            catch (IOException e) {
-                throw new RuntimeException(e);
-            }
+        if (o == null) {
+            return;
+        }
+        if (asyncCloser != null) {
+            final OutputStream closing = o;
+            final Path closingPath = currentPath;
+            o = null;
+            asyncCloser.close(closing, new AsyncCloser.Callback()
+            {
+                @Override
+                public void onClosed(long nanos)
+                {
+                    metrics.onClose(closingPath.toString(), nanos);
+                    logIfSlow("close", closingPath, closing, nanos);
+                }
+            });
+            return;
+        }
+        try {
+            long startNanos = System.nanoTime();
+            o.close();
+            long nanos = System.nanoTime() - startNanos;
+            metrics.onClose(currentPath.toString(), nanos);
+            logIfSlow("close", currentPath, o, nanos);
+            o = null;
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
         }
     }
 }
@@ -1,9 +1,13 @@
 package org.embulk.output.hdfs;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
 import com.google.common.base.Optional;
+import com.google.common.hash.Hashing;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
 import org.embulk.config.ConfigDiff;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.Task;
 import org.embulk.config.TaskReport;
@@ -18,6 +22,7 @@ import org.embulk.spi.TransactionalFileOutput;
 import org.slf4j.Logger;
 
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 
 public class HdfsFileOutputPlugin
@@ -70,12 +75,402 @@ public class HdfsFileOutputPlugin
         @ConfigDefault("null")
         Optional<DeleteInAdvancePolicy> getDeleteInAdvance();
 
+        @Config("delete_in_background")
+        @ConfigDefault("false")
+        boolean getDeleteInBackground();
+
+        @Config("tombstone_ttl_seconds")
+        @ConfigDefault("86400")
+        long getTombstoneTtlSeconds();
+
         @Config("workspace")
         @ConfigDefault("\"/tmp\"")
         String getWorkspace();
 
         String getSafeWorkspace();
         void setSafeWorkspace(String safeWorkspace);
+
+        @Config("workspace_ttl_seconds")
+        @ConfigDefault("null")
+        Optional<Long> getWorkspaceTtlSeconds();
+
+        @Config("transaction_threads")
+        @ConfigDefault("8")
+        int getTransactionThreads();
+
+        @Config("versioned_retention")
+        @ConfigDefault("2")
+        int getVersionedRetention();
+
+        String getRunId();
+        void setRunId(String runId);
+
+        int getTaskCount();
+        void setTaskCount(int taskCount);
+
+        @Config("max_open_streams")
+        @ConfigDefault("null")
+        Optional<Integer> getMaxOpenStreams();
+
+        @Config("max_buffered_bytes")
+        @ConfigDefault("268435456") // 256MB
+        long getMaxBufferedBytes();
+
+        @Config("stream_latency_target_ms")
+        @ConfigDefault("1000")
+        long getStreamLatencyTargetMillis();
+
+        @Config("max_rpcs_per_second")
+        @ConfigDefault("null")
+        Optional<Integer> getMaxRpcsPerSecond();
+
+        @Config("slow_operation_threshold_ms")
+        @ConfigDefault("10000")
+        long getSlowOperationThresholdMillis();
+
+        @Config("local_fast_path")
+        @ConfigDefault("false")
+        boolean getLocalFastPath();
+
+        @Config("fsync_on_close")
+        @ConfigDefault("false")
+        boolean getFsyncOnClose();
+
+        enum Placement
+        {
+            DEFAULT, LOCAL, NO_LOCAL, RACK_LOCAL;
+
+            @JsonValue
+            @Override
+            public String toString()
+            {
+                return name().toLowerCase(Locale.ENGLISH);
+            }
+
+            @JsonCreator
+            @SuppressWarnings("unused")
+            public static Placement fromString(String value)
+            {
+                switch (value) {
+                    case "default":
+                        return DEFAULT;
+                    case "local":
+                        return LOCAL;
+                    case "no_local":
+                        return NO_LOCAL;
+                    case "rack_local":
+                        return RACK_LOCAL;
+                    default:
+                        throw new ConfigException(String.format(
+                                "Unknown placement `%s`. Supported placement is `default`, `local`, `no_local`, `rack_local`", value));
+                }
+            }
+        }
+
+        // NOTE: `rack_local` needs the DataNode report, which requires the HDFS superuser privilege.
+        // Without it, `rack_local` falls back to the default placement, and `local` assumes the DataNode on the local host.
+        @Config("placement")
+        @ConfigDefault("\"default\"")
+        Placement getPlacement();
+
+        @Config("favored_nodes")
+        @ConfigDefault("[]")
+        List<String> getFavoredNodes();
+
+        enum Staging
+        {
+            NONE, LOCAL;
+
+            @JsonValue
+            @Override
+            public String toString()
+            {
+                return name().toLowerCase(Locale.ENGLISH);
+            }
+
+            @JsonCreator
+            @SuppressWarnings("unused")
+            public static Staging fromString(String value)
+            {
+                switch (value) {
+                    case "none":
+                        return NONE;
+                    case "local":
+                        return LOCAL;
+                    default:
+                        throw new ConfigException(String.format(
+                                "Unknown staging `%s`. Supported staging is `none`, `local`", value));
+                }
+            }
+        }
+
+        @Config("staging")
+        @ConfigDefault("\"none\"")
+        Staging getStaging();
+
+        @Config("staging_dir")
+        @ConfigDefault("null")
+        Optional<String> getStagingDir();
+
+        @Config("staging_max_bytes")
+        @ConfigDefault("1073741824") // 1GB
+        long getStagingMaxBytes();
+
+        @Config("staging_upload_threads")
+        @ConfigDefault("4")
+        int getStagingUploadThreads();
+
+        @Config("continue_sequence")
+        @ConfigDefault("false")
+        boolean getContinueSequence();
+
+        @Config("sequence_task_offset")
+        @ConfigDefault("0")
+        int getSequenceTaskOffset();
+
+        enum Container
+        {
+            NONE, SEQUENCE_FILE, MAP_FILE;
+
+            @JsonValue
+            @Override
+            public String toString()
+            {
+                return name().toLowerCase(Locale.ENGLISH);
+            }
+
+            @JsonCreator
+            @SuppressWarnings("unused")
+            public static Container fromString(String value)
+            {
+                switch (value) {
+                    case "none":
+                        return NONE;
+                    case "sequence_file":
+                        return SEQUENCE_FILE;
+                    case "map_file":
+                        return MAP_FILE;
+                    default:
+                        throw new ConfigException(String.format(
+                                "Unknown container `%s`. Supported container is `none`, `sequence_file`, `map_file`", value));
+                }
+            }
+
+            public String getExtension()
+            {
+                switch (this) {
+                    case SEQUENCE_FILE:
+                        return "seq";
+                    case MAP_FILE:
+                        return "map";
+                    default:
+                        return "";
+                }
+            }
+        }
+
+        @Config("container")
+        @ConfigDefault("\"none\"")
+        Container getContainer();
+
+        @Config("container_max_entry_bytes")
+        @ConfigDefault("67108864")
+        long getContainerMaxEntryBytes();
+
+        enum QuotaCheck
+        {
+            NONE, WARN, ABORT;
+
+            @JsonValue
+            @Override
+            public String toString()
+            {
+                return name().toLowerCase(Locale.ENGLISH);
+            }
+
+            @JsonCreator
+            @SuppressWarnings("unused")
+            public static QuotaCheck fromString(String value)
+            {
+                switch (value) {
+                    case "none":
+                        return NONE;
+                    case "warn":
+                        return WARN;
+                    case "abort":
+                        return ABORT;
+                    default:
+                        throw new ConfigException(String.format(
+                                "Unknown quota_check `%s`. Supported quota_check is `none`, `warn`, `abort`", value));
+                }
+            }
+        }
+
+        @Config("quota_check")
+        @ConfigDefault("\"none\"")
+        QuotaCheck getQuotaCheck();
+
+        @Config("expected_output_bytes")
+        @ConfigDefault("null")
+        Optional<Long> getExpectedOutputBytes();
+
+        // NOTE: These are stored in the config diff by the previous run.
+        @Config("last_output_bytes")
+        @ConfigDefault("null")
+        Optional<Long> getLastOutputBytes();
+
+        @Config("last_output_files")
+        @ConfigDefault("null")
+        Optional<Long> getLastOutputFiles();
+
+        @Config("max_in_flight_closes")
+        @ConfigDefault("0")
+        int getMaxInFlightCloses();
+
+        @Config("pre_open_next_file")
+        @ConfigDefault("false")
+        boolean getPreOpenNextFile();
+
+        @Config("skip_unchanged")
+        @ConfigDefault("false")
+        boolean getSkipUnchanged();
+
+        @Config("skip_unchanged_read_back")
+        @ConfigDefault("false")
+        boolean getSkipUnchangedReadBack();
+
+        @Config("namespaces")
+        @ConfigDefault("[]")
+        List<String> getNamespaces();
+
+        enum NamespaceAssignment
+        {
+            ROUND_ROBIN, HASH;
+
+            @JsonValue
+            @Override
+            public String toString()
+            {
+                return name().toLowerCase(Locale.ENGLISH);
+            }
+
+            @JsonCreator
+            @SuppressWarnings("unused")
+            public static NamespaceAssignment fromString(String value)
+            {
+                switch (value) {
+                    case "round_robin":
+                        return ROUND_ROBIN;
+                    case "hash":
+                        return HASH;
+                    default:
+                        throw new ConfigException(String.format(
+                                "Unknown namespace_assignment `%s`. Supported namespace_assignment is `round_robin`, `hash`", value));
+                }
+            }
+
+            // Returns the index of the namespace where the file is written.
+            // `round_robin` spreads the files of each task, and `hash` writes all the files of a task into one namespace.
+            public int select(int namespaces, int taskIndex, int fileIndex)
+            {
+                switch (this) {
+                    case HASH:
+                        return Hashing.consistentHash(Hashing.murmur3_32().hashInt(taskIndex), namespaces);
+                    default:
+                        return (taskIndex + fileIndex) % namespaces;
+                }
+            }
+        }
+
+        @Config("namespace_assignment")
+        @ConfigDefault("\"round_robin\"")
+        NamespaceAssignment getNamespaceAssignment();
+
+        @Config("index_path")
+        @ConfigDefault("null")
+        Optional<String> getIndexPath();
+
+        @Config("use_snapshot")
+        @ConfigDefault("false")
+        boolean getUseSnapshot();
+
+        enum BlockCompression
+        {
+            NONE, BGZF;
+
+            @JsonValue
+            @Override
+            public String toString()
+            {
+                return name().toLowerCase(Locale.ENGLISH);
+            }
+
+            @JsonCreator
+            @SuppressWarnings("unused")
+            public static BlockCompression fromString(String value)
+            {
+                switch (value) {
+                    case "none":
+                        return NONE;
+                    case "bgzf":
+                        return BGZF;
+                    default:
+                        throw new ConfigException(String.format(
+                                "Unknown block_compression `%s`. Supported block_compression is `none`, `bgzf`", value));
+                }
+            }
+        }
+
+        @Config("block_compression")
+        @ConfigDefault("\"none\"")
+        BlockCompression getBlockCompression();
+
+        @Config("precreate_directories")
+        @ConfigDefault("false")
+        boolean getPrecreateDirectories();
+
+        enum Verify
+        {
+            NONE, CHECKSUM;
+
+            @JsonValue
+            @Override
+            public String toString()
+            {
+                return name().toLowerCase(Locale.ENGLISH);
+            }
+
+            @JsonCreator
+            @SuppressWarnings("unused")
+            public static Verify fromString(String value)
+            {
+                switch (value) {
+                    case "none":
+                        return NONE;
+                    case "checksum":
+                        return CHECKSUM;
+                    default:
+                        throw new ConfigException(String.format(
+                                "Unknown verify `%s`. Supported verify is `none`, `checksum`", value));
+                }
+            }
+        }
+
+        @Config("verify")
+        @ConfigDefault("\"none\"")
+        Verify getVerify();
+
+        @Config("write_replication")
+        @ConfigDefault("null")
+        Optional<Integer> getWriteReplication();
+
+        @Config("wait_for_replication")
+        @ConfigDefault("false")
+        boolean getWaitForReplication();
+
+        @Config("replication_wait_timeout_seconds")
+        @ConfigDefault("600")
+        long getReplicationWaitTimeoutSeconds();
     }
 
     private void compat(PluginTask task)
@@ -84,6 +479,74 @@ public class HdfsFileOutputPlugin
         task.setMode(modeCompat);
     }
 
+    private void validate(PluginTask task)
+    {
+        if (task.getSequenceTaskOffset() < 0) {
+            throw new ConfigException("`sequence_task_offset` must be 0 or more.");
+        }
+        if (task.getContainerMaxEntryBytes() <= 0 || task.getContainerMaxEntryBytes() > Integer.MAX_VALUE) {
+            throw new ConfigException("`container_max_entry_bytes` must be more than 0 and at most 2147483647.");
+        }
+        if (task.getContainer() != PluginTask.Container.NONE && task.getStaging() != PluginTask.Staging.NONE) {
+            throw new ConfigException("`container` option cannot be used with `staging` option.");
+        }
+        if (task.getMaxInFlightCloses() < 0) {
+            throw new ConfigException("`max_in_flight_closes` must be 0 or more.");
+        }
+        if (task.getContainer() != PluginTask.Container.NONE && task.getMaxInFlightCloses() > 0) {
+            throw new ConfigException("`max_in_flight_closes` option cannot be used with `container` option.");
+        }
+        if (task.getPreOpenNextFile()
+                && (task.getStaging() != PluginTask.Staging.NONE || task.getContainer() != PluginTask.Container.NONE)) {
+            throw new ConfigException("`pre_open_next_file` option cannot be used with `staging` or `container` option.");
+        }
+        if (task.getVerify() == PluginTask.Verify.CHECKSUM
+                && (task.getStaging() != PluginTask.Staging.NONE || task.getContainer() != PluginTask.Container.NONE)) {
+            throw new ConfigException("`verify: checksum` cannot be used with `staging` or `container` option.");
+        }
+        if (task.getSkipUnchangedReadBack() && !task.getSkipUnchanged()) {
+            throw new ConfigException("`skip_unchanged_read_back` option requires `skip_unchanged`.");
+        }
+        if (task.getSkipUnchanged()) {
+            if (task.getMode() != Mode.OVERWRITE) {
+                throw new ConfigException("`skip_unchanged` option is available only if mode is overwrite.");
+            }
+            if (task.getStaging() != PluginTask.Staging.LOCAL) {
+                throw new ConfigException("`skip_unchanged` option requires `staging: local`.");
+            }
+        }
+        if (!task.getNamespaces().isEmpty()
+                && (task.getMode() == Mode.REPLACE_DIRECT || task.getMode() == Mode.REPLACE_VERSIONED)) {
+            throw new ConfigException(String.format("`namespaces` option cannot be used with `%s` mode.", task.getMode()));
+        }
+        if (task.getBlockCompression() != PluginTask.BlockCompression.NONE && task.getContainer() != PluginTask.Container.NONE) {
+            throw new ConfigException("`block_compression` option cannot be used with `container` option.");
+        }
+        if (task.getUseSnapshot() && task.getMode() != Mode.OVERWRITE && task.getMode() != Mode.REPLACE) {
+            throw new ConfigException("`use_snapshot` option is available only if mode is overwrite or replace.");
+        }
+        if (task.getWorkspaceTtlSeconds().isPresent()) {
+            if (task.getMode() != Mode.REPLACE) {
+                throw new ConfigException("`workspace_ttl_seconds` option is available only if mode is replace.");
+            }
+            if (task.getWorkspaceTtlSeconds().get() <= 0) {
+                throw new ConfigException("`workspace_ttl_seconds` must be more than 0.");
+            }
+        }
+        if (task.getTombstoneTtlSeconds() <= 0) {
+            throw new ConfigException("`tombstone_ttl_seconds` must be more than 0.");
+        }
+        if (task.getMaxRpcsPerSecond().isPresent() && task.getMaxRpcsPerSecond().get() <= 0) {
+            throw new ConfigException("`max_rpcs_per_second` must be more than 0.");
+        }
+        if (task.getWriteReplication().isPresent() && task.getWriteReplication().get() <= 0) {
+            throw new ConfigException("`write_replication` must be more than 0.");
+        }
+        if (task.getWaitForReplication() && !task.getWriteReplication().isPresent()) {
+            throw new ConfigException("`wait_for_replication` option requires `write_replication` option.");
+        }
+    }
+
     // NOTE: This is to avoid the following error.
     // Error: java.lang.RuntimeException: com.fasterxml.jackson.databind.JsonMappingException: Field 'SafeWorkspace' is required but not set
     //  at [Source: N/A; line: -1, column: -1]
@@ -91,6 +554,7 @@ public class HdfsFileOutputPlugin
     {
         // Set default value
         task.setSafeWorkspace("");
+        task.setRunId("");
     }
 
     @Override
@@ -100,6 +564,8 @@ public class HdfsFileOutputPlugin
         final PluginTask task = config.loadConfig(PluginTask.class);
         compat(task);
         avoidDatabindError(task);
+        validate(task);
+        task.setTaskCount(taskCount);
 
         Tx tx = task.getMode().newTx();
         return tx.transaction(task, new ControlRun()
@@ -125,6 +591,8 @@ public class HdfsFileOutputPlugin
             int taskCount,
             List<TaskReport> successTaskReports)
     {
+        PluginTask task = taskSource.loadTask(PluginTask.class);
+        task.getMode().newTx().cleanup(task, successTaskReports);
     }
 
     @Override
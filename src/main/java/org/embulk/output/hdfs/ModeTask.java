@@ -13,7 +13,9 @@ import org.embulk.output.hdfs.transaction.AbortIfExistTx;
 import org.embulk.output.hdfs.transaction.DeleteFilesInAdvanceTx;
 import org.embulk.output.hdfs.transaction.DeleteRecursiveInAdvanceTx;
 import org.embulk.output.hdfs.transaction.OverwriteTx;
+import org.embulk.output.hdfs.transaction.ReplaceDirectTx;
 import org.embulk.output.hdfs.transaction.ReplaceTx;
+import org.embulk.output.hdfs.transaction.ReplaceVersionedTx;
 import org.embulk.output.hdfs.transaction.Tx;
 import org.embulk.spi.Exec;
 import org.slf4j.Logger;
@@ -37,7 +39,9 @@ public interface ModeTask
         OVERWRITE,
         DELETE_FILES_IN_ADVANCE,
         DELETE_RECURSIVE_IN_ADVANCE,
-        REPLACE;
+        REPLACE,
+        REPLACE_DIRECT,
+        REPLACE_VERSIONED;
 
         private static final Logger logger = Exec.getLogger(Mode.class);
 
@@ -69,6 +73,10 @@ public interface ModeTask
                     return DELETE_RECURSIVE_IN_ADVANCE;
                 case "replace":
                     return REPLACE;
+                case "replace_direct":
+                    return REPLACE_DIRECT;
+                case "replace_versioned":
+                    return REPLACE_VERSIONED;
                 default:
                     throw new ConfigException(String.format(
                             "Unknown mode `%s`. Supported mode is %s",
@@ -102,6 +110,10 @@ public interface ModeTask
                     return new OverwriteTx();
                 case REPLACE:
                     return new ReplaceTx();
+                case REPLACE_DIRECT:
+                    return new ReplaceDirectTx();
+                case REPLACE_VERSIONED:
+                    return new ReplaceVersionedTx();
                 default:
                     throw new IllegalStateException();
             }
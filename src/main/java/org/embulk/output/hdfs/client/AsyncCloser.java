@@ -0,0 +1,119 @@
+package org.embulk.output.hdfs.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Closes streams in background, because closing a stream on HDFS waits for the acks of the last packets
+// and the completeFile RPC. The number of in-flight closes is bounded, and the failures are thrown by await.
+public class AsyncCloser
+{
+    private static final Logger logger = Exec.getLogger(AsyncCloser.class);
+
+    public interface Callback
+    {
+        void onClosed(long nanos);
+    }
+
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    private final List<Future<Void>> closes = Lists.newArrayList();
+
+    public AsyncCloser(int maxInFlight)
+    {
+        this.inFlight = new Semaphore(maxInFlight);
+        this.executor = Executors.newFixedThreadPool(maxInFlight, new ThreadFactoryBuilder()
+                .setNameFormat("embulk-output-hdfs-close-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    public void close(final Closeable closeable, final Callback callback)
+    {
+        try {
+            inFlight.acquire();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        try {
+            closes.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call()
+                        throws Exception
+                {
+                    try {
+                        long startNanos = System.nanoTime();
+                        closeable.close();
+                        callback.onClosed(System.nanoTime() - startNanos);
+                        return null;
+                    }
+                    finally {
+                        inFlight.release();
+                    }
+                }
+            }));
+        }
+        catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    // Waits for the in-flight closes, and throws the first failure.
+    public void await()
+    {
+        List<Future<Void>> futures = Lists.newArrayList(closes);
+        closes.clear();
+        RuntimeException failure = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new RuntimeException(e.getCause());
+                }
+                else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Waits for the in-flight closes without throwing the failures, then stops the threads.
+    public void shutdown()
+    {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Closing streams are still running after the shutdown.");
+                executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package org.embulk.output.hdfs.client;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+// Compresses the data into BGZF: a series of gzip members of up to 64 KB of the data each,
+// which have the compressed size in the `BC` extra field. Any gzip reader can read the whole file,
+// and a reader can start reading from any block, so the file is splittable.
+// The side-car index has an entry per block, written as the blocks are written:
+// the offset of the block in the compressed file and the offset of its data in the uncompressed data,
+// as two big-endian 64-bit integers.
+public class BgzfOutputStream
+        extends OutputStream
+{
+    public static final String EXTENSION = "gz";
+    public static final String INDEX_EXTENSION = "idx";
+
+    // NOTE: The same sizes as bgzip, so that the compressed block does not exceed 64 KB even if the data is incompressible.
+    static final int MAX_BLOCK_SIZE = 65536;
+    static final int MAX_DATA_SIZE = 65280;
+    private static final int HEADER_SIZE = 18;
+    private static final int FOOTER_SIZE = 8;
+    private static final byte[] EOF_BLOCK = {
+            0x1f, (byte) 0x8b, 0x08, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00, (byte) 0xff, 0x06, 0x00, 0x42, 0x43,
+            0x02, 0x00, 0x1b, 0x00, 0x03, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+
+    private final OutputStream out;
+    private final DataOutputStream index;
+    private final Deflater deflater;
+    private final Deflater noCompressionDeflater = new Deflater(Deflater.NO_COMPRESSION, true);
+    private final CRC32 crc = new CRC32();
+    private final byte[] data = new byte[MAX_DATA_SIZE];
+    private final byte[] block = new byte[MAX_BLOCK_SIZE];
+    private int dataLength = 0;
+    private long compressedOffset = 0;
+    private long uncompressedOffset = 0;
+    private boolean closed = false;
+
+    public BgzfOutputStream(OutputStream out, OutputStream index, int level)
+    {
+        this.out = out;
+        this.index = new DataOutputStream(index);
+        this.deflater = new Deflater(level, true);
+    }
+
+    public OutputStream getWrappedStream()
+    {
+        return out;
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        data[dataLength++] = (byte) b;
+        if (dataLength == MAX_DATA_SIZE) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        while (len > 0) {
+            int n = Math.min(len, MAX_DATA_SIZE - dataLength);
+            System.arraycopy(b, off, data, dataLength, n);
+            dataLength += n;
+            off += n;
+            len -= n;
+            if (dataLength == MAX_DATA_SIZE) {
+                writeBlock();
+            }
+        }
+    }
+
+    // NOTE: This does not write the partial block, to keep the blocks large.
+    @Override
+    public void flush()
+            throws IOException
+    {
+        out.flush();
+        index.flush();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (dataLength > 0) {
+                writeBlock();
+            }
+            out.write(EOF_BLOCK);
+        }
+        finally {
+            deflater.end();
+            noCompressionDeflater.end();
+            try {
+                out.close();
+            }
+            finally {
+                index.close();
+            }
+        }
+    }
+
+    private void writeBlock()
+            throws IOException
+    {
+        int compressedLength = deflate(deflater);
+        if (compressedLength < 0) {
+            // The data is incompressible, so store it as it is.
+            compressedLength = deflate(noCompressionDeflater);
+        }
+        int blockSize = HEADER_SIZE + compressedLength + FOOTER_SIZE;
+        crc.reset();
+        crc.update(data, 0, dataLength);
+
+        index.writeLong(compressedOffset);
+        index.writeLong(uncompressedOffset);
+
+        writeHeader(blockSize);
+        int pos = HEADER_SIZE + compressedLength;
+        pos = putIntLE(block, pos, (int) crc.getValue());
+        putIntLE(block, pos, dataLength);
+        out.write(block, 0, blockSize);
+
+        compressedOffset += blockSize;
+        uncompressedOffset += dataLength;
+        dataLength = 0;
+    }
+
+    // Returns the length of the compressed data, or -1 if it does not fit in a block.
+    private int deflate(Deflater d)
+    {
+        int capacity = MAX_BLOCK_SIZE - HEADER_SIZE - FOOTER_SIZE;
+        d.reset();
+        d.setInput(data, 0, dataLength);
+        d.finish();
+        int length = 0;
+        while (!d.finished() && length < capacity) {
+            length += d.deflate(block, HEADER_SIZE + length, capacity - length);
+        }
+        return d.finished() ? length : -1;
+    }
+
+    private void writeHeader(int blockSize)
+    {
+        block[0] = 0x1f;
+        block[1] = (byte) 0x8b;
+        block[2] = 0x08; // deflate
+        block[3] = 0x04; // FEXTRA
+        putIntLE(block, 4, 0); // MTIME
+        block[8] = 0x00; // XFL
+        block[9] = (byte) 0xff; // OS: unknown
+        putShortLE(block, 10, 6); // XLEN
+        block[12] = 'B';
+        block[13] = 'C';
+        putShortLE(block, 14, 2); // SLEN
+        putShortLE(block, 16, blockSize - 1); // BSIZE
+    }
+
+    private static int putIntLE(byte[] b, int pos, int value)
+    {
+        b[pos] = (byte) value;
+        b[pos + 1] = (byte) (value >>> 8);
+        b[pos + 2] = (byte) (value >>> 16);
+        b[pos + 3] = (byte) (value >>> 24);
+        return pos + 4;
+    }
+
+    private static void putShortLE(byte[] b, int pos, int value)
+    {
+        b[pos] = (byte) value;
+        b[pos + 1] = (byte) (value >>> 8);
+    }
+}
@@ -0,0 +1,163 @@
+package org.embulk.output.hdfs.client;
+
+import com.google.common.collect.Lists;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants.DatanodeReportType;
+import org.apache.hadoop.net.DNSToSwitchMapping;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.net.ScriptBasedMapping;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.embulk.config.ConfigException;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.Placement;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+// Resolves the DataNodes where the first replica of each block should be placed.
+public class BlockPlacement
+{
+    private static final Logger logger = Exec.getLogger(BlockPlacement.class);
+    private static final String DATANODE_ADDRESS_KEY = "dfs.datanode.address";
+    private static final String DATANODE_ADDRESS_DEFAULT = "0.0.0.0:50010";
+
+    private final Placement placement;
+    private final List<String> favoredNodes;
+    private InetSocketAddress[] resolved = null;
+
+    public BlockPlacement(Placement placement, List<String> favoredNodes)
+    {
+        if (placement == Placement.NO_LOCAL && !favoredNodes.isEmpty()) {
+            throw new ConfigException("`favored_nodes` option cannot be used with `placement: no_local`.");
+        }
+        this.placement = placement;
+        this.favoredNodes = favoredNodes;
+    }
+
+    public boolean isDefault()
+    {
+        return placement == Placement.DEFAULT && favoredNodes.isEmpty();
+    }
+
+    public boolean isNoLocalWrite()
+    {
+        return placement == Placement.NO_LOCAL;
+    }
+
+    public synchronized InetSocketAddress[] getFavoredNodes(FileSystem fs, Configuration conf, short replication)
+    {
+        if (resolved != null) {
+            return resolved;
+        }
+        int defaultPort = NetUtils.createSocketAddr(conf.get(DATANODE_ADDRESS_KEY, DATANODE_ADDRESS_DEFAULT)).getPort();
+        List<InetSocketAddress> nodes = Lists.newArrayList();
+        for (String node : favoredNodes) {
+            nodes.add(NetUtils.createSocketAddr(node, defaultPort));
+        }
+        switch (placement) {
+            case LOCAL:
+                nodes.addAll(0, getLocalNodes(fs, defaultPort));
+                break;
+            case RACK_LOCAL:
+                nodes.addAll(0, getRackLocalNodes(fs, conf, replication));
+                break;
+            default:
+                break;
+        }
+        logger.info("Use as favored nodes: {}", nodes);
+        resolved = nodes.toArray(new InetSocketAddress[nodes.size()]);
+        return resolved;
+    }
+
+    // Returns the DataNode running on this host, or nothing if there is no DataNode on this host.
+    // If the DataNode report is denied, e.g. to the non-superuser, assumes the DataNode listens on the local host
+    // with the port of `dfs.datanode.address`. The NameNode ignores the favored node which is not a DataNode.
+    private List<InetSocketAddress> getLocalNodes(FileSystem fs, int defaultPort)
+    {
+        if (!(fs instanceof DistributedFileSystem)) {
+            return Collections.emptyList();
+        }
+        List<DatanodeInfo> datanodes;
+        try {
+            datanodes = getLiveDataNodes((DistributedFileSystem) fs);
+        }
+        catch (IOException e) {
+            InetSocketAddress local = NetUtils.createSocketAddr(getLocalHostName(), defaultPort);
+            logger.info("Failed to list the DataNodes ({}). Assume the DataNode on this host: {}", e.getMessage(), local);
+            return Lists.newArrayList(local);
+        }
+        List<InetSocketAddress> nodes = Lists.newArrayList();
+        for (DatanodeInfo datanode : datanodes) {
+            try {
+                if (NetUtils.isLocalAddress(InetAddress.getByName(datanode.getIpAddr()))) {
+                    nodes.add(NetUtils.createSocketAddr(datanode.getXferAddr()));
+                    break;
+                }
+            }
+            catch (UnknownHostException e) {
+                logger.debug("Skip the DataNode whose address is unknown: {}", datanode.getXferAddr());
+            }
+        }
+        if (nodes.isEmpty()) {
+            logger.warn("No DataNode is running on this host. Use the default placement.");
+        }
+        return nodes;
+    }
+
+    private List<InetSocketAddress> getRackLocalNodes(FileSystem fs, Configuration conf, short replication)
+    {
+        List<InetSocketAddress> nodes = Lists.newArrayList();
+        DNSToSwitchMapping mapping = ReflectionUtils.newInstance(
+                conf.getClass("net.topology.node.switch.mapping.impl", ScriptBasedMapping.class, DNSToSwitchMapping.class),
+                conf);
+        String rack = mapping.resolve(Lists.newArrayList(getLocalHostName())).get(0);
+        if (!(fs instanceof DistributedFileSystem)) {
+            return Collections.emptyList();
+        }
+        List<DatanodeInfo> datanodes;
+        try {
+            datanodes = getLiveDataNodes((DistributedFileSystem) fs);
+        }
+        catch (IOException e) {
+            // NOTE: The racks of the DataNodes are known only by the report, which requires the superuser privilege.
+            logger.warn("Failed to list the DataNodes. Use the default placement.", e);
+            return Collections.emptyList();
+        }
+        for (DatanodeInfo datanode : datanodes) {
+            if (rack.equals(datanode.getNetworkLocation())) {
+                nodes.add(NetUtils.createSocketAddr(datanode.getXferAddr()));
+            }
+        }
+        if (nodes.isEmpty()) {
+            logger.warn("No DataNode is in the rack `{}`. Use the default placement.", rack);
+        }
+        Collections.shuffle(nodes);
+        return nodes.subList(0, Math.min(nodes.size(), replication));
+    }
+
+    // NOTE: The DataNode report requires the superuser privilege of HDFS.
+    private List<DatanodeInfo> getLiveDataNodes(DistributedFileSystem fs)
+            throws IOException
+    {
+        return Arrays.asList(fs.getDataNodeStats(DatanodeReportType.LIVE));
+    }
+
+    private static String getLocalHostName()
+    {
+        try {
+            return InetAddress.getLocalHost().getCanonicalHostName();
+        }
+        catch (UnknownHostException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
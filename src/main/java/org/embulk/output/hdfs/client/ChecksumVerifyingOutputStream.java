@@ -0,0 +1,59 @@
+package org.embulk.output.hdfs.client;
+
+import org.apache.hadoop.fs.Path;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Computes the checksum of the written data, and compares it with the checksum of the file on close.
+class ChecksumVerifyingOutputStream
+        extends FilterOutputStream
+{
+    private final HdfsClient hdfsClient;
+    private final Path path;
+    private final Md5Md5Crc32Digest digest;
+    private long length = 0;
+    private boolean closed = false;
+
+    ChecksumVerifyingOutputStream(HdfsClient hdfsClient, Path path, OutputStream out, Md5Md5Crc32Digest digest)
+    {
+        super(out);
+        this.hdfsClient = hdfsClient;
+        this.path = path;
+        this.digest = digest;
+    }
+
+    OutputStream getWrappedStream()
+    {
+        return out;
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        out.write(b, off, len);
+        digest.update(b, off, len);
+        length += len;
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        out.close();
+        hdfsClient.verifyChecksum(path, length, digest.digest());
+    }
+}
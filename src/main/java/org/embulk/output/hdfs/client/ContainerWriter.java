@@ -0,0 +1,147 @@
+package org.embulk.output.hdfs.client;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.embulk.spi.DataException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Packs logical files into a block-compressed SequenceFile or MapFile as records of (name, content).
+// A MapFile is written as its `data` and `index` SequenceFiles in the same way as MapFile.Writer,
+// so that both files are created by the output streams of HdfsClient.
+// NOTE: A record needs the length of the content before it, so each logical file is buffered in memory up to maxEntryBytes.
+public class ContainerWriter
+        implements Closeable
+{
+    private final SequenceFile.Writer data;
+    private final FSDataOutputStream dataOut;
+    private final SequenceFile.Writer index;
+    private final FSDataOutputStream indexOut;
+    private final int indexInterval;
+    private final long maxEntryBytes;
+    private final LongWritable position = new LongWritable();
+    private Text lastKey = null;
+    private long size = 0;
+    private long lastIndexPos = -1;
+    private long lastIndexKeyCount = Long.MIN_VALUE;
+    private boolean closed = false;
+
+    ContainerWriter(SequenceFile.Writer data, FSDataOutputStream dataOut, long maxEntryBytes)
+    {
+        this(data, dataOut, null, null, 0, maxEntryBytes);
+    }
+
+    ContainerWriter(SequenceFile.Writer data, FSDataOutputStream dataOut, SequenceFile.Writer index,
+            FSDataOutputStream indexOut, int indexInterval, long maxEntryBytes)
+    {
+        this.data = data;
+        this.dataOut = dataOut;
+        this.index = index;
+        this.indexOut = indexOut;
+        this.indexInterval = indexInterval;
+        this.maxEntryBytes = maxEntryBytes;
+    }
+
+    // Returns a stream of the logical file, which is appended as a record when the stream is closed.
+    public OutputStream newEntry(final String name)
+    {
+        return new ByteArrayOutputStream()
+        {
+            private boolean appended = false;
+
+            @Override
+            public synchronized void write(int b)
+            {
+                checkSize(1);
+                super.write(b);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len)
+            {
+                checkSize(len);
+                super.write(b, off, len);
+            }
+
+            private void checkSize(int len)
+            {
+                if (count + (long) len > maxEntryBytes) {
+                    throw new DataException(String.format(
+                            "The file %s exceeds `container_max_entry_bytes` (%d bytes)", name, maxEntryBytes));
+                }
+            }
+
+            @Override
+            public void close()
+                    throws IOException
+            {
+                if (appended) {
+                    return;
+                }
+                appended = true;
+                append(name, buf, count);
+            }
+        };
+    }
+
+    private synchronized void append(String name, byte[] bytes, int length)
+            throws IOException
+    {
+        Text key = new Text(name);
+        BytesWritable value = new BytesWritable();
+        value.set(bytes, 0, length);
+        if (index != null) {
+            // NOTE: MapFile requires the keys in ascending order, so the sequence numbers must be zero-padded.
+            if (lastKey != null && lastKey.compareTo(key) > 0) {
+                throw new IOException(String.format("key out of order: %s after %s", key, lastKey));
+            }
+            lastKey = key;
+            // Index the position of every indexInterval records, where a compressed block starts.
+            long pos = data.getLength();
+            if (size >= lastIndexKeyCount + indexInterval && pos > lastIndexPos) {
+                position.set(pos);
+                index.append(key, position);
+                lastIndexPos = pos;
+                lastIndexKeyCount = size;
+            }
+        }
+        data.append(key, value);
+        size++;
+    }
+
+    @Override
+    public synchronized void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // NOTE: The writers do not close the streams given by the option.
+        try {
+            close(data, dataOut);
+        }
+        finally {
+            if (index != null) {
+                close(index, indexOut);
+            }
+        }
+    }
+
+    private static void close(SequenceFile.Writer writer, FSDataOutputStream out)
+            throws IOException
+    {
+        try {
+            writer.close();
+        }
+        finally {
+            out.close();
+        }
+    }
+}
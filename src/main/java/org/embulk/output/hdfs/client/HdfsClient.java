@@ -1,38 +1,112 @@
 package org.embulk.output.hdfs.client;
 
 import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.io.BaseEncoding;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.CreateFlag;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileChecksum;
 import org.apache.hadoop.fs.FileContext;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.GlobFilter;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.MD5MD5CRC32FileChecksum;
 import org.apache.hadoop.fs.Options;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.QuotaUsage;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.RemoteIterator;
 import org.apache.hadoop.fs.Trash;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.hdfs.DFSOutputStream;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.client.HdfsClientConfigKeys;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.protocol.SnapshotDiffReport;
+import org.apache.hadoop.hdfs.protocol.SnapshottableDirectoryStatus;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.MD5Hash;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.security.UserGroupInformation;
+import org.apache.hadoop.util.DataChecksum;
 import org.embulk.config.ConfigException;
 import org.embulk.output.hdfs.HdfsFileOutputPlugin;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.Container;
+import org.embulk.output.hdfs.metrics.HdfsClientMetrics;
+import org.embulk.output.hdfs.util.Parallel;
 import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
 import org.embulk.spi.util.RetryExecutor;
 import org.slf4j.Logger;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
 
 public class HdfsClient
 {
     public static HdfsClient build(HdfsFileOutputPlugin.PluginTask task)
     {
         Configuration conf = buildConfiguration(task.getConfigFiles(), task.getConfig());
-        return new HdfsClient(conf, task.getDoas());
+        Optional<StreamLimiter> streamLimiter = Optional.absent();
+        if (task.getMaxOpenStreams().isPresent()) {
+            streamLimiter = Optional.of(StreamLimiter.getInstance(
+                    task.getMaxOpenStreams().get(),
+                    task.getMaxBufferedBytes(),
+                    task.getStreamLatencyTargetMillis()));
+        }
+        Optional<RpcLimiter> rpcLimiter = Optional.absent();
+        if (task.getMaxRpcsPerSecond().isPresent()) {
+            rpcLimiter = Optional.of(RpcLimiter.getInstance(task.getMaxRpcsPerSecond().get()));
+        }
+        Optional<Short> writeReplication = Optional.absent();
+        if (task.getWriteReplication().isPresent()) {
+            writeReplication = Optional.of(task.getWriteReplication().get().shortValue());
+        }
+        BlockPlacement placement = new BlockPlacement(task.getPlacement(), task.getFavoredNodes());
+        return new HdfsClient(conf, task.getDoas(), streamLimiter, rpcLimiter, writeReplication, placement,
+                TimeUnit.MILLISECONDS.toNanos(task.getSlowOperationThresholdMillis()),
+                task.getLocalFastPath(), task.getFsyncOnClose());
     }
 
-    ;
-
     public static Configuration buildConfiguration(List<String> configFiles, Map<String, String> configs)
     {
         Configuration c = new Configuration();
@@ -53,22 +127,61 @@ public class HdfsClient
     }
 
     private static Logger logger = Exec.getLogger(HdfsClient.class);
+    private static final int UPLOAD_BUFFER_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final int LOCAL_BUFFER_SIZE = 4 * 1024 * 1024; // 4MB
+    private static final String DIGEST_ALGORITHM = "MD5";
+    private static final Pattern GLOB_CHARS = Pattern.compile("[*?{}\\[\\]\\\\]");
+    // The same as MapFile.Writer, which does not expose the key.
+    private static final String MAP_FILE_INDEX_INTERVAL_KEY = "io.map.index.interval";
+    private static final String DIGEST_XATTR = "user.embulk-output-hdfs.md5";
+    // The operations to commit the output, which are served first by the RPC limiter.
+    private static final Set<String> COMMIT_OPERATIONS = ImmutableSet.of(
+            "complete", "rename", "rename_overwrite", "rename_directory", "create_symlink",
+            "create_snapshot", "delete_snapshot", "write_file", "set_replication");
     private final Configuration conf;
     private final FileSystem fs;
+    private final ConcurrentMap<URI, FileSystem> namespaceFs = new ConcurrentHashMap<>();
     private final Optional<String> user;
+    private final Optional<StreamLimiter> streamLimiter;
+    private final Optional<RpcLimiter> rpcLimiter;
+    private final Optional<Short> writeReplication;
+    private final BlockPlacement placement;
+    private final long slowOperationThresholdNanos;
+    private final boolean localFastPath;
+    private final boolean fsyncOnClose;
+    private final HdfsClientMetrics metrics = new HdfsClientMetrics();
+    private final AtomicBoolean checksumUnsupportedWarned = new AtomicBoolean(false);
     private final RetryExecutor re = RetryExecutor.retryExecutor()
             .withRetryLimit(3)
             .withMaxRetryWait(500)             // ms
             .withMaxRetryWait(10 * 60 * 1000); // ms
 
-    private HdfsClient(Configuration conf, Optional<String> user)
+    private HdfsClient(Configuration conf, Optional<String> user, Optional<StreamLimiter> streamLimiter,
+            Optional<RpcLimiter> rpcLimiter, Optional<Short> writeReplication, BlockPlacement placement, long slowOperationThresholdNanos, boolean localFastPath, boolean fsyncOnClose)
     {
+        this.slowOperationThresholdNanos = slowOperationThresholdNanos;
+        this.localFastPath = localFastPath;
+        this.fsyncOnClose = fsyncOnClose;
         this.conf = conf;
         this.user = user;
+        this.streamLimiter = streamLimiter;
+        this.rpcLimiter = rpcLimiter;
+        this.writeReplication = writeReplication;
+        this.placement = placement;
         this.fs = getFs(conf, user);
     }
 
-    private abstract static class Retryable<T>
+    public HdfsClientMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    public Optional<StreamLimiter> getStreamLimiter()
+    {
+        return streamLimiter;
+    }
+
+    private abstract class Retryable<T>
             implements RetryExecutor.Retryable<T>
     {
         @Override
@@ -88,6 +201,7 @@ public class HdfsClient
                     retryLimit,
                     retryWait);
             logger.warn(m, exception);
+            metrics.onRetry();
         }
 
         @Override
@@ -97,14 +211,97 @@ public class HdfsClient
         }
     }
 
-    private <T> T run(Retryable<T> retryable)
+    private <T> T run(final String operation, Object target, final Retryable<T> retryable)
     {
+        metrics.onOperation();
+        long startNanos = System.nanoTime();
         try {
-            return re.run(retryable);
+            // NOTE: Each attempt takes a token of the RPC limiter, because the retries also call the NameNode.
+            return re.run(new RetryExecutor.Retryable<T>()
+            {
+                @Override
+                public T call()
+                        throws Exception
+                {
+                    beforeRpc(operation);
+                    return retryable.call();
+                }
+
+                @Override
+                public boolean isRetryableException(Exception exception)
+                {
+                    return retryable.isRetryableException(exception);
+                }
+
+                @Override
+                public void onRetry(Exception exception, int retryCount, int retryLimit, int retryWait)
+                        throws RetryExecutor.RetryGiveupException
+                {
+                    retryable.onRetry(exception, retryCount, retryLimit, retryWait);
+                }
+
+                @Override
+                public void onGiveup(Exception firstException, Exception lastException)
+                        throws RetryExecutor.RetryGiveupException
+                {
+                    retryable.onGiveup(firstException, lastException);
+                }
+            });
         }
         catch (RetryExecutor.RetryGiveupException e) {
             throw new RuntimeException(e);
         }
+        finally {
+            long nanos = System.nanoTime() - startNanos;
+            metrics.onLatency(operation, nanos);
+            if (nanos > slowOperationThresholdNanos) {
+                logger.warn("Slow operation: {} {} took {} ms", operation, target, TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+        }
+    }
+
+    // Counts the RPC of the operation, and waits for the RPC limiter if enabled.
+    private void beforeRpc(String operation)
+            throws InterruptedIOException
+    {
+        long waitNanos = 0;
+        if (rpcLimiter.isPresent()) {
+            waitNanos = rpcLimiter.get().acquire(COMMIT_OPERATIONS.contains(operation));
+        }
+        metrics.onRpc(operation, waitNanos);
+    }
+
+    public long getSlowOperationThresholdNanos()
+    {
+        return slowOperationThresholdNanos;
+    }
+
+    // Describes the DataNodes in the write pipeline of the stream for logging, if the stream is written into HDFS.
+    public static Optional<String> describePipeline(OutputStream out)
+    {
+        OutputStream unwrapped = out instanceof BgzfOutputStream ? ((BgzfOutputStream) out).getWrappedStream() : out;
+        if (unwrapped instanceof ChecksumVerifyingOutputStream) {
+            unwrapped = ((ChecksumVerifyingOutputStream) unwrapped).getWrappedStream();
+        }
+        if (unwrapped instanceof CompletingOutputStream) {
+            unwrapped = ((CompletingOutputStream) unwrapped).out;
+        }
+        unwrapped = StreamLimiter.unwrap(unwrapped);
+        if (unwrapped instanceof FSDataOutputStream) {
+            unwrapped = ((FSDataOutputStream) unwrapped).getWrappedStream();
+        }
+        if (!(unwrapped instanceof DFSOutputStream)) {
+            return Optional.absent();
+        }
+        DatanodeInfo[] pipeline = ((DFSOutputStream) unwrapped).getPipeline();
+        if (pipeline == null) {
+            return Optional.absent();
+        }
+        List<String> nodes = Lists.newArrayList();
+        for (DatanodeInfo datanode : pipeline) {
+            nodes.add(datanode.getXferAddr());
+        }
+        return Optional.of(nodes.toString());
     }
 
     private FileSystem getFs(Configuration conf, Optional<String> user)
@@ -119,7 +316,7 @@ public class HdfsClient
 
     private FileSystem getFs(final Configuration conf, final String user)
     {
-        return run(new Retryable<FileSystem>()
+        return run("get_fs", FileSystem.getDefaultUri(conf), new Retryable<FileSystem>()
         {
             @Override
             public FileSystem call()
@@ -133,7 +330,7 @@ public class HdfsClient
 
     private FileSystem getFs(final Configuration conf)
     {
-        return run(new Retryable<FileSystem>()
+        return run("get_fs", FileSystem.getDefaultUri(conf), new Retryable<FileSystem>()
         {
             @Override
             public FileSystem call()
@@ -144,66 +341,850 @@ public class HdfsClient
         });
     }
 
+    // Returns the file system of the path: the default one, or the one of the namespace
+    // if the path is qualified with another scheme or authority, e.g. `hdfs://ns2/path`.
+    private FileSystem getFs(Path path)
+    {
+        URI uri = path.toUri();
+        if (uri.getScheme() == null || isDefaultNamespace(uri)) {
+            return fs;
+        }
+        final URI namespace = URI.create(String.format("%s://%s/", uri.getScheme(), Strings.nullToEmpty(uri.getAuthority())));
+        FileSystem cached = namespaceFs.get(namespace);
+        if (cached != null) {
+            return cached;
+        }
+        FileSystem namespaceFileSystem = run("get_fs", namespace, new Retryable<FileSystem>()
+        {
+            @Override
+            public FileSystem call()
+                    throws Exception
+            {
+                if (user.isPresent()) {
+                    return FileSystem.get(namespace, conf, user.get());
+                }
+                return FileSystem.get(namespace, conf);
+            }
+        });
+        cached = namespaceFs.putIfAbsent(namespace, namespaceFileSystem);
+        return cached != null ? cached : namespaceFileSystem;
+    }
+
+    private boolean isDefaultNamespace(URI uri)
+    {
+        URI defaultUri = fs.getUri();
+        return uri.getScheme().equalsIgnoreCase(defaultUri.getScheme())
+                && Strings.nullToEmpty(uri.getAuthority()).equalsIgnoreCase(Strings.nullToEmpty(defaultUri.getAuthority()));
+    }
+
     public FileStatus[] glob(final Path globPath)
     {
-        return run(new Retryable<FileStatus[]>()
+        return run("glob", globPath, new Retryable<FileStatus[]>()
         {
             @Override
             public FileStatus[] call()
                     throws Exception
             {
-                return fs.globStatus(globPath);
+                return getFs(globPath).globStatus(globPath);
             }
         });
     }
 
     public boolean trash(final Path path)
     {
-        return run(new Retryable<Boolean>()
+        return run("trash", path, new Retryable<Boolean>()
         {
             @Override
             public Boolean call()
                     throws Exception
             {
-                return Trash.moveToAppropriateTrash(fs, path, conf);
+                return Trash.moveToAppropriateTrash(getFs(path), path, conf);
             }
         });
     }
 
-    public void globFilesAndTrash(final Path globPath)
+    // Iterates the entries matching the glob while listing the directory page by page with listStatusIterator,
+    // so that the entries are not materialized in heap. This falls back to globStatus
+    // if the parent directory includes a glob pattern.
+    public Iterator<FileStatus> globIterator(final Path globPath)
     {
-        for (final FileStatus fileStatus : glob(globPath)) {
-            if (fileStatus.isDirectory()) {
-                logger.debug("Skip {} because {} is a directory.",
-                        fileStatus.getPath(), fileStatus.getPath());
-                continue;
-            }
-            logger.debug("Move To Trash: {}", fileStatus.getPath());
-            if (!trash(fileStatus.getPath())) {
-                throw new RuntimeException(String.format("Failed to Move To Trash: %s", fileStatus.getPath()));
+        final Path parent = globPath.getParent();
+        final GlobFilter filter;
+        try {
+            filter = new GlobFilter(globPath.getName());
+        }
+        catch (IOException e) {
+            throw new ConfigException(e);
+        }
+        if (parent == null || GLOB_CHARS.matcher(parent.toString()).find() || !filter.hasPattern()) {
+            FileStatus[] statuses = glob(globPath);
+            metrics.onListed(statuses == null ? 0 : statuses.length);
+            return statuses == null ? Collections.<FileStatus>emptyIterator() : Iterators.forArray(statuses);
+        }
+        final RemoteIterator<FileStatus> listing = run("list_status_iterator", parent, new Retryable<RemoteIterator<FileStatus>>()
+        {
+            @Override
+            public RemoteIterator<FileStatus> call()
+                    throws Exception
+            {
+                FileSystem parentFs = getFs(parent);
+                if (!parentFs.exists(parent)) {
+                    return null;
+                }
+                return parentFs.listStatusIterator(parent);
             }
+        });
+        if (listing == null) {
+            return Collections.emptyIterator();
         }
+        return new AbstractIterator<FileStatus>()
+        {
+            @Override
+            protected FileStatus computeNext()
+            {
+                try {
+                    while (listing.hasNext()) {
+                        FileStatus status = listing.next();
+                        metrics.onListed(1);
+                        if (filter.accept(status.getPath())) {
+                            return status;
+                        }
+                    }
+                    return endOfData();
+                }
+                catch (IOException e) {
+                    throw new RuntimeException(String.format("Failed to list %s", parent), e);
+                }
+            }
+        };
     }
 
-    public void globAndTrash(final Path globPath)
+    public void globFilesAndTrash(final Path globPath, int threads)
     {
-        for (final FileStatus fileStatus : glob(globPath)) {
-            logger.debug("Move To Trash: {}", fileStatus.getPath());
-            if (!trash(fileStatus.getPath())) {
-                throw new RuntimeException(String.format("Failed to Move To Trash: %s", fileStatus.getPath()));
+        globAndTrash(globPath, threads, true);
+    }
+
+    public void globAndTrash(final Path globPath, int threads)
+    {
+        globAndTrash(globPath, threads, false);
+    }
+
+    // Deletes the entries while the listing continues.
+    private void globAndTrash(final Path globPath, int threads, final boolean filesOnly)
+    {
+        long startNanos = System.nanoTime();
+        long listedBefore = metrics.getListedEntries();
+        long deletedBefore = metrics.getDeletedEntries();
+        Parallel.forEach("trash", globIterator(globPath), threads, new Parallel.Action<FileStatus>()
+        {
+            @Override
+            public void run(FileStatus fileStatus)
+            {
+                if (filesOnly && fileStatus.isDirectory()) {
+                    logger.debug("Skip {} because {} is a directory.",
+                            fileStatus.getPath(), fileStatus.getPath());
+                    return;
+                }
+                logger.debug("Move To Trash: {}", fileStatus.getPath());
+                if (!trash(fileStatus.getPath())) {
+                    throw new RuntimeException(String.format("Failed to Move To Trash: %s", fileStatus.getPath()));
+                }
+                metrics.onDeleted(1);
             }
-        }
+        });
+        double seconds = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)) / 1000.0;
+        long deleted = metrics.getDeletedEntries() - deletedBefore;
+        logger.info("Listed {} entries and deleted {} entries of {} in {} s ({} entries/s)",
+                metrics.getListedEntries() - listedBefore, deleted, globPath,
+                String.format("%.3f", seconds), String.format("%.1f", deleted / seconds));
     }
 
+    // NOTE: An existing file is not retried, because the retries never succeed without overwrite,
+    // e.g. the speculative create of StreamPreOpener must fail fast.
     public OutputStream create(final Path path, final boolean overwrite)
     {
-        return run(new Retryable<OutputStream>()
+        return run("create", path, new Retryable<OutputStream>()
         {
             @Override
             public OutputStream call()
                     throws Exception
             {
-                return fs.create(path, overwrite);
+                return openOutputStream(path, overwrite, true);
+            }
+
+            @Override
+            public boolean isRetryableException(Exception exception)
+            {
+                return !(exception instanceof FileAlreadyExistsException) && super.isRetryableException(exception);
+            }
+        });
+    }
+
+    // Creates the file in the directory which is known to exist, without the checks and the mkdirs of the ancestors.
+    // Falls back to create if the directory does not exist.
+    public OutputStream createNonRecursive(final Path path, final boolean overwrite)
+    {
+        return run("create_non_recursive", path, new Retryable<OutputStream>()
+        {
+            @Override
+            public OutputStream call()
+                    throws Exception
+            {
+                try {
+                    return openOutputStream(path, overwrite, false);
+                }
+                catch (FileNotFoundException e) {
+                    logger.warn("The parent directory of {} does not exist, so create it: {}", path, e.getMessage());
+                    return openOutputStream(path, overwrite, true);
+                }
+            }
+
+            @Override
+            public boolean isRetryableException(Exception exception)
+            {
+                return !(exception instanceof FileAlreadyExistsException) && super.isRetryableException(exception);
+            }
+        });
+    }
+
+    // Creates the small file written along with a file created by create, e.g. an index.
+    // It does not wait for `max_open_streams`, because the task already holds the permit of the main file.
+    public OutputStream createSideFile(final Path path, final boolean overwrite)
+    {
+        return run("create_side_file", path, new Retryable<OutputStream>()
+        {
+            @Override
+            public OutputStream call()
+                    throws Exception
+            {
+                return openSideOutputStream(path, overwrite);
+            }
+
+            @Override
+            public boolean isRetryableException(Exception exception)
+            {
+                return !(exception instanceof FileAlreadyExistsException) && super.isRetryableException(exception);
+            }
+        });
+    }
+
+    private OutputStream openOutputStream(Path path, boolean overwrite)
+            throws IOException
+    {
+        return openOutputStream(path, overwrite, true);
+    }
+
+    // Opens the small file written along with a limited stream, e.g. an index.
+    // It does not take another permit of the limiter, which could deadlock the tasks holding the permits of the main files.
+    private OutputStream openSideOutputStream(Path path, boolean overwrite)
+            throws IOException
+    {
+        return new CompletingOutputStream(createStream(path, overwrite, true));
+    }
+
+    private OutputStream openOutputStream(Path path, boolean overwrite, boolean recursive)
+            throws IOException
+    {
+        if (!streamLimiter.isPresent()) {
+            return new CompletingOutputStream(createStream(path, overwrite, recursive));
+        }
+        StreamLimiter limiter = streamLimiter.get();
+        limiter.acquireStream();
+        try {
+            return new CompletingOutputStream(limiter.wrap(createStream(path, overwrite, recursive)));
+        }
+        catch (IOException | RuntimeException e) {
+            limiter.releaseStream();
+            throw e;
+        }
+    }
+
+    // Counts the `complete` RPC of closing the file, and waits for the RPC limiter if enabled.
+    private class CompletingOutputStream
+            extends OutputStream
+    {
+        private final OutputStream out;
+        private boolean closed = false;
+
+        CompletingOutputStream(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                beforeRpc("complete");
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    public ContainerWriter createContainer(final Path path, final Container container, final boolean overwrite,
+            final long maxEntryBytes)
+    {
+        return run("create_container", path, new Retryable<ContainerWriter>()
+        {
+            @Override
+            public ContainerWriter call()
+                    throws Exception
+            {
+                if (!overwrite && getFs(path).exists(path)) {
+                    throw new FileAlreadyExistsException(String.format("%s already exists", path));
+                }
+                final SequenceFile.Writer.Option compression = SequenceFile.Writer.compression(
+                        SequenceFile.CompressionType.BLOCK, new DefaultCodec());
+                switch (container) {
+                    case SEQUENCE_FILE:
+                        FSDataOutputStream out = new FSDataOutputStream(openOutputStream(path, overwrite), null);
+                        try {
+                            return new ContainerWriter(newContainerFileWriter(out, BytesWritable.class, compression),
+                                    out, maxEntryBytes);
+                        }
+                        catch (IOException | RuntimeException e) {
+                            out.close();
+                            throw e;
+                        }
+                    case MAP_FILE:
+                        // NOTE: The files are created in the same way as MapFile.Writer, but by the streams of this client.
+                        FSDataOutputStream dataOut = new FSDataOutputStream(
+                                openOutputStream(new Path(path, MapFile.DATA_FILE_NAME), overwrite), null);
+                        FSDataOutputStream indexOut = null;
+                        try {
+                            SequenceFile.Writer data = newContainerFileWriter(dataOut, BytesWritable.class, compression);
+                            indexOut = new FSDataOutputStream(
+                                    openSideOutputStream(new Path(path, MapFile.INDEX_FILE_NAME), overwrite), null);
+                            SequenceFile.Writer index = newContainerFileWriter(indexOut, LongWritable.class,
+                                    SequenceFile.Writer.compression(SequenceFile.CompressionType.BLOCK));
+                            return new ContainerWriter(data, dataOut, index, indexOut,
+                                    conf.getInt(MAP_FILE_INDEX_INTERVAL_KEY, 128), maxEntryBytes);
+                        }
+                        catch (IOException | RuntimeException e) {
+                            try {
+                                dataOut.close();
+                                if (indexOut != null) {
+                                    indexOut.close();
+                                }
+                            }
+                            catch (IOException | RuntimeException suppressed) {
+                                e.addSuppressed(suppressed);
+                            }
+                            throw e;
+                        }
+                    default:
+                        throw new IllegalArgumentException(String.format("Unsupported container: %s", container));
+                }
+            }
+        });
+    }
+
+    private SequenceFile.Writer newContainerFileWriter(FSDataOutputStream out, Class<?> valueClass,
+            SequenceFile.Writer.Option compression)
+            throws IOException
+    {
+        return SequenceFile.createWriter(conf,
+                SequenceFile.Writer.stream(out),
+                SequenceFile.Writer.keyClass(Text.class),
+                SequenceFile.Writer.valueClass(valueClass),
+                compression);
+    }
+
+    public void upload(final File src, final Path dst, final boolean overwrite)
+    {
+        run("upload", dst, new Retryable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                boolean created = false;
+                try (FileChannel in = FileChannel.open(src.toPath(), StandardOpenOption.READ)) {
+                    OutputStream out = openOutputStream(dst, overwrite);
+                    created = true;
+                    try {
+                        ByteBuffer buf = ByteBuffer.allocate(UPLOAD_BUFFER_SIZE);
+                        while (in.read(buf) >= 0) {
+                            out.write(buf.array(), 0, buf.position());
+                            buf.clear();
+                        }
+                    }
+                    finally {
+                        out.close();
+                    }
+                    return null;
+                }
+                catch (Exception e) {
+                    // remove the partial file so that the retry can upload it from the beginning.
+                    if (created && !getFs(dst).delete(dst, false)) {
+                        logger.warn("Failed to delete the partially uploaded file: {}", dst);
+                    }
+                    throw e;
+                }
+            }
+        });
+    }
+
+    public void writeFile(final Path path, final byte[] bytes, final boolean overwrite)
+    {
+        run("write_file", path, new Retryable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                try (OutputStream out = getFs(path).create(path, overwrite)) {
+                    out.write(bytes);
+                }
+                return null;
+            }
+        });
+    }
+
+    public FileStatus[] listStatus(final Path path)
+    {
+        return run("list_status", path, new Retryable<FileStatus[]>()
+        {
+            @Override
+            public FileStatus[] call()
+                    throws Exception
+            {
+                FileSystem pathFs = getFs(path);
+                if (!pathFs.exists(path)) {
+                    return new FileStatus[0];
+                }
+                return pathFs.listStatus(path);
+            }
+        });
+    }
+
+    public boolean rename(final Path src, final Path dst)
+    {
+        return run("rename", src, new Retryable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                    throws Exception
+            {
+                return getFs(src).rename(src, dst);
+            }
+        });
+    }
+
+    public boolean delete(final Path path, final boolean recursive)
+    {
+        return run("delete", path, new Retryable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                    throws Exception
+            {
+                return getFs(path).delete(path, recursive);
+            }
+        });
+    }
+
+    public static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Compares the length first, then the digest stored in the xattr.
+    // If the digest is not stored, the file is regarded as changed unless readBack, which reads the whole file.
+    public boolean hasSameContent(final Path path, final long length, final byte[] digest, final boolean readBack)
+    {
+        return run("compare", path, new Retryable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                    throws Exception
+            {
+                FileSystem pathFs = getFs(path);
+                if (!pathFs.exists(path)) {
+                    return false;
+                }
+                FileStatus status = pathFs.getFileStatus(path);
+                if (status.isDirectory() || status.getLen() != length) {
+                    return false;
+                }
+                Optional<byte[]> stored = getDigest(path);
+                if (stored.isPresent()) {
+                    return Arrays.equals(stored.get(), digest);
+                }
+                if (!readBack) {
+                    logger.debug("Regard {} as changed because the digest is not stored", path);
+                    return false;
+                }
+                MessageDigest md = newDigest();
+                try (InputStream in = pathFs.open(path)) {
+                    byte[] buf = new byte[UPLOAD_BUFFER_SIZE];
+                    int n;
+                    while ((n = in.read(buf)) >= 0) {
+                        md.update(buf, 0, n);
+                    }
+                }
+                boolean same = Arrays.equals(md.digest(), digest);
+                if (same) {
+                    setDigest(path, digest);
+                }
+                return same;
+            }
+        });
+    }
+
+    private Optional<byte[]> getDigest(Path path)
+    {
+        try {
+            return Optional.fromNullable(getFs(path).getXAttr(path, DIGEST_XATTR));
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            // NOTE: The xattr does not exist, or the file system does not support xattrs.
+            logger.debug("Failed to get the digest of {}: {}", path, e.getMessage());
+            return Optional.absent();
+        }
+    }
+
+    // Stores the digest of the file as the xattr so that the next comparison does not read the content.
+    public void setDigest(Path path, byte[] digest)
+    {
+        try {
+            getFs(path).setXAttr(path, DIGEST_XATTR, digest);
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            logger.debug("Failed to set the digest of {}: {}", path, e.getMessage());
+        }
+    }
+
+    // Wraps the stream to compare the checksum of the written data with the checksum of the file after it is closed,
+    // which costs a checksum request to the DataNodes of each block instead of reading the file back.
+    public OutputStream verifyOnClose(Path path, OutputStream out)
+    {
+        DataChecksum.Type crcType = DataChecksum.Type.valueOf(conf.get(
+                HdfsClientConfigKeys.DFS_CHECKSUM_TYPE_KEY, HdfsClientConfigKeys.DFS_CHECKSUM_TYPE_DEFAULT));
+        int bytesPerCrc = conf.getInt(
+                HdfsClientConfigKeys.DFS_BYTES_PER_CHECKSUM_KEY, HdfsClientConfigKeys.DFS_BYTES_PER_CHECKSUM_DEFAULT);
+        long blockSize = getFs(path).getDefaultBlockSize(path);
+        return new ChecksumVerifyingOutputStream(this, path, out, new Md5Md5Crc32Digest(crcType, bytesPerCrc, blockSize));
+    }
+
+    void verifyChecksum(final Path path, long length, byte[] digest)
+            throws IOException
+    {
+        Optional<FileChecksum> checksum = run("get_file_checksum", path, new Retryable<Optional<FileChecksum>>()
+        {
+            @Override
+            public Optional<FileChecksum> call()
+                    throws Exception
+            {
+                return Optional.fromNullable(getFs(path).getFileChecksum(path));
+            }
+        });
+        if (!checksum.isPresent() || !(checksum.get() instanceof MD5MD5CRC32FileChecksum)) {
+            if (!checksumUnsupportedWarned.getAndSet(true)) {
+                logger.warn("Skip verifying the checksums, because the file system does not support them: {}", path);
+            }
+            return;
+        }
+        // NOTE: The bytes are bytes-per-CRC (int), CRCs-per-block (long) and the MD5, which is compared here.
+        int offset = Integer.BYTES + Long.BYTES;
+        byte[] md5 = Arrays.copyOfRange(checksum.get().getBytes(), offset, offset + MD5Hash.MD5_LEN);
+        if (!Arrays.equals(md5, digest)) {
+            throw new IOException(String.format("The checksum of %s (%d bytes) does not match: expected %s but %s",
+                    path, length, BaseEncoding.base16().lowerCase().encode(digest), checksum.get()));
+        }
+        logger.debug("Verified the checksum of {}: {}", path, checksum.get());
+    }
+
+    // NOTE: The local fast path ignores recursive, because mkdirs of the existing directories is cheap on the local file systems.
+    // NOTE: The files are created with the write replication if set, and the replication is raised after the commit.
+    private OutputStream createStream(Path path, boolean overwrite, boolean recursive)
+            throws IOException
+    {
+        FileSystem pathFs = getFs(path);
+        if (localFastPath && getRawLocalFs(pathFs).isPresent()) {
+            return createLocalStream(pathFs, getRawLocalFs(pathFs).get(), path, overwrite);
+        }
+        if (recursive && !writeReplication.isPresent() && (placement.isDefault() || !(pathFs instanceof DistributedFileSystem))) {
+            return pathFs.create(path, overwrite);
+        }
+        FsPermission permission = FsPermission.getFileDefault().applyUMask(FsPermission.getUMask(conf));
+        int bufferSize = conf.getInt("io.file.buffer.size", 4096);
+        short replication = writeReplication.or(pathFs.getDefaultReplication(path));
+        long blockSize = pathFs.getDefaultBlockSize(path);
+        if (recursive && (placement.isDefault() || !(pathFs instanceof DistributedFileSystem))) {
+            return pathFs.create(path, overwrite, bufferSize, replication, blockSize);
+        }
+        if (!recursive && (placement.isDefault() || placement.isNoLocalWrite() || !(pathFs instanceof DistributedFileSystem))) {
+            EnumSet<CreateFlag> flags = overwrite ? EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE) : EnumSet.of(CreateFlag.CREATE);
+            if (placement.isNoLocalWrite() && pathFs instanceof DistributedFileSystem) {
+                flags.add(CreateFlag.NO_LOCAL_WRITE);
+            }
+            return pathFs.createNonRecursive(path, permission, flags, bufferSize, replication, blockSize, null);
+        }
+        // NOTE: createNonRecursive does not take the favored nodes, so they are created recursively.
+        DistributedFileSystem dfs = (DistributedFileSystem) pathFs;
+        if (placement.isNoLocalWrite()) {
+            EnumSet<CreateFlag> flags = overwrite
+                    ? EnumSet.of(CreateFlag.CREATE, CreateFlag.OVERWRITE, CreateFlag.NO_LOCAL_WRITE)
+                    : EnumSet.of(CreateFlag.CREATE, CreateFlag.NO_LOCAL_WRITE);
+            return dfs.create(path, permission, flags, bufferSize, replication, blockSize, null, null);
+        }
+        InetSocketAddress[] favoredNodes = placement.getFavoredNodes(pathFs, conf, replication);
+        return dfs.create(path, permission, overwrite, bufferSize, replication, blockSize, null, favoredNodes);
+    }
+
+    private Optional<RawLocalFileSystem> getRawLocalFs(FileSystem fileSystem)
+    {
+        FileSystem raw = fileSystem instanceof LocalFileSystem ? ((LocalFileSystem) fileSystem).getRawFileSystem() : fileSystem;
+        if (raw instanceof RawLocalFileSystem) {
+            return Optional.of((RawLocalFileSystem) raw);
+        }
+        return Optional.absent();
+    }
+
+    // Writes the file directly with FileChannel on the local file systems including NFS mounts.
+    // The semantics of create is kept: the parent directories are made, and the existing file is an error if not overwrite.
+    private OutputStream createLocalStream(FileSystem fileSystem, RawLocalFileSystem raw, Path path, boolean overwrite)
+            throws IOException
+    {
+        File file = raw.pathToFile(path);
+        if (file.isDirectory() || (!overwrite && file.exists())) {
+            throw new FileAlreadyExistsException(String.format("File already exists: %s", path));
+        }
+        Path parent = path.getParent();
+        if (parent != null && !raw.mkdirs(parent)) {
+            throw new IOException(String.format("Mkdirs failed to create %s", parent));
+        }
+        if (fileSystem instanceof ChecksumFileSystem) {
+            // NOTE: The stale checksum of the overwritten file fails the reads through LocalFileSystem.
+            raw.delete(((ChecksumFileSystem) fileSystem).getChecksumFile(path), false);
+        }
+        return new LocalFileChannelOutputStream(file, overwrite, LOCAL_BUFFER_SIZE, fsyncOnClose);
+    }
+
+    // Returns the nearest ancestor (or the path itself) that has the namespace or space quota.
+    // NOTE: getQuotaUsage is a cheap RPC only on HDFS. The other file systems compute it from the content summary.
+    public Optional<Path> findQuotaRoot(final Path path)
+    {
+        final FileSystem pathFs = getFs(path);
+        if (!(pathFs instanceof DistributedFileSystem)) {
+            return Optional.absent();
+        }
+        return run("find_quota_root", path, new Retryable<Optional<Path>>()
+        {
+            @Override
+            public Optional<Path> call()
+                    throws Exception
+            {
+                for (Path p = pathFs.makeQualified(path); p != null; p = p.getParent()) {
+                    if (!pathFs.exists(p)) {
+                        continue;
+                    }
+                    QuotaUsage usage = pathFs.getQuotaUsage(p);
+                    if (usage.getQuota() >= 0 || usage.getSpaceQuota() >= 0) {
+                        return Optional.of(p);
+                    }
+                }
+                return Optional.absent();
+            }
+        });
+    }
+
+    public QuotaUsage getQuotaUsage(final Path path)
+    {
+        return run("get_quota_usage", path, new Retryable<QuotaUsage>()
+        {
+            @Override
+            public QuotaUsage call()
+                    throws Exception
+            {
+                return getFs(path).getQuotaUsage(path);
+            }
+        });
+    }
+
+    // Returns the nearest snapshottable ancestor (or the path itself) owned by the user. This works only on HDFS.
+    public Optional<Path> findSnapshottableRoot(final Path path)
+    {
+        final FileSystem pathFs = getFs(path);
+        if (!(pathFs instanceof DistributedFileSystem)) {
+            return Optional.absent();
+        }
+        return run("find_snapshottable_root", path, new Retryable<Optional<Path>>()
+        {
+            @Override
+            public Optional<Path> call()
+                    throws Exception
+            {
+                SnapshottableDirectoryStatus[] listing = ((DistributedFileSystem) pathFs).getSnapshottableDirListing();
+                if (listing == null) {
+                    return Optional.absent();
+                }
+                Set<Path> roots = Sets.newHashSet();
+                for (SnapshottableDirectoryStatus status : listing) {
+                    roots.add(pathFs.makeQualified(status.getFullPath()));
+                }
+                for (Path p = pathFs.makeQualified(path); p != null; p = p.getParent()) {
+                    if (roots.contains(p)) {
+                        return Optional.of(p);
+                    }
+                }
+                return Optional.absent();
+            }
+        });
+    }
+
+    public Path createSnapshot(final Path root, final String name)
+    {
+        return run("create_snapshot", root, new Retryable<Path>()
+        {
+            @Override
+            public Path call()
+                    throws Exception
+            {
+                return getFs(root).createSnapshot(root, name);
+            }
+        });
+    }
+
+    public void deleteSnapshot(final Path root, final String name)
+    {
+        run("delete_snapshot", root, new Retryable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                getFs(root).deleteSnapshot(root, name);
+                return null;
+            }
+        });
+    }
+
+    // Returns the difference between the snapshot and the current state.
+    public SnapshotDiffReport getSnapshotDiffReport(final Path root, final String name)
+    {
+        return run("get_snapshot_diff_report", root, new Retryable<SnapshotDiffReport>()
+        {
+            @Override
+            public SnapshotDiffReport call()
+                    throws Exception
+            {
+                return ((DistributedFileSystem) getFs(root)).getSnapshotDiffReport(root, name, "");
+            }
+        });
+    }
+
+    public Optional<FileStatus> getFileStatus(final Path path)
+    {
+        return run("get_file_status", path, new Retryable<Optional<FileStatus>>()
+        {
+            @Override
+            public Optional<FileStatus> call()
+                    throws Exception
+            {
+                FileSystem pathFs = getFs(path);
+                if (!pathFs.exists(path)) {
+                    return Optional.absent();
+                }
+                return Optional.of(pathFs.getFileStatus(path));
+            }
+        });
+    }
+
+    // Copies the file or the directory recursively, overwriting the existing files.
+    public void copy(final Path src, final Path dst)
+    {
+        run("copy", dst, new Retryable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                if (!FileUtil.copy(getFs(src), src, getFs(dst), dst, false, true, conf)) {
+                    throw new IOException(String.format("Failed to copy %s to %s", src, dst));
+                }
+                return null;
+            }
+        });
+    }
+
+    public short getDefaultReplication(Path path)
+    {
+        return getFs(path).getDefaultReplication(path);
+    }
+
+    public long getDefaultBlockSize(Path path)
+    {
+        return getFs(path).getDefaultBlockSize(path);
+    }
+
+    public boolean setReplication(final Path path, final short replication)
+    {
+        return run("set_replication", path, new Retryable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                    throws Exception
+            {
+                return getFs(path).setReplication(path, replication);
+            }
+        });
+    }
+
+    // Returns true if every block of the file has the replicas, or the file system does not replicate the blocks.
+    public boolean isReplicated(final Path path, final short replication)
+    {
+        final FileSystem pathFs = getFs(path);
+        if (!(pathFs instanceof DistributedFileSystem)) {
+            return true;
+        }
+        return run("get_file_block_locations", path, new Retryable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                    throws Exception
+            {
+                FileStatus status = pathFs.getFileStatus(path);
+                for (BlockLocation location : pathFs.getFileBlockLocations(status, 0, status.getLen())) {
+                    if (location.getHosts().length < replication) {
+                        return false;
+                    }
+                }
+                return true;
             }
         });
     }
@@ -215,26 +1196,64 @@ public class HdfsClient
 
     public boolean mkdirs(final Path path)
     {
-        return run(new Retryable<Boolean>()
+        return run("mkdirs", path, new Retryable<Boolean>()
         {
             @Override
             public Boolean call()
                     throws Exception
             {
-                return fs.mkdirs(path);
+                return getFs(path).mkdirs(path);
             }
         });
     }
 
     public void close()
     {
-        run(new Retryable<Void>()
+        run("close", fs.getUri(), new Retryable<Void>()
         {
             @Override
             public Void call()
                     throws Exception
             {
                 fs.close();
+                for (FileSystem namespaceFileSystem : namespaceFs.values()) {
+                    namespaceFileSystem.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    public boolean supportsSymlinks()
+    {
+        return FileSystem.areSymlinksEnabled() && fs.supportsSymlinks();
+    }
+
+    public void createSymlink(final Path target, final Path link)
+    {
+        run("create_symlink", link, new Retryable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                getFs(link).createSymlink(target, link, false);
+                return null;
+            }
+        });
+    }
+
+    // NOTE: rename with overwrite is atomic on hdfs.
+    public void renameOverwrite(final Path src, final Path dst)
+    {
+        run("rename_overwrite", dst, new Retryable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                FileContext.getFileContext(conf).rename(src, dst, Options.Rename.OVERWRITE);
+                logger.debug("Rename: {} >>> {}", src, dst);
                 return null;
             }
         });
@@ -247,13 +1266,13 @@ public class HdfsClient
 
     public void renameDirectory(final Path src, final Path dst, final boolean trashIfExists)
     {
-        run(new Retryable<Void>()
+        run("rename_directory", dst, new Retryable<Void>()
         {
             @Override
             public Void call()
                     throws Exception
             {
-                if (fs.exists(dst)) {
+                if (getFs(dst).exists(dst)) {
                     if (!trashIfExists) {
                         throw new DataException(String.format("Directory Exists: %s", dst.toString()));
                     }
@@ -0,0 +1,89 @@
+package org.embulk.output.hdfs.client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// Writes a local file with FileChannel and a direct buffer, without the checksum sidecar of LocalFileSystem.
+class LocalFileChannelOutputStream
+        extends OutputStream
+{
+    private final FileChannel channel;
+    private final ByteBuffer buf;
+    private final boolean fsync;
+    private boolean closed = false;
+
+    LocalFileChannelOutputStream(File file, boolean overwrite, int bufferSize, boolean fsync)
+            throws IOException
+    {
+        this.channel = overwrite
+                ? FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.buf = ByteBuffer.allocateDirect(bufferSize);
+        this.fsync = fsync;
+    }
+
+    @Override
+    public void write(int b)
+            throws IOException
+    {
+        if (!buf.hasRemaining()) {
+            flushBuffer();
+        }
+        buf.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+            throws IOException
+    {
+        while (len > 0) {
+            if (!buf.hasRemaining()) {
+                flushBuffer();
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush()
+            throws IOException
+    {
+        flushBuffer();
+    }
+
+    @Override
+    public void close()
+            throws IOException
+    {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            flushBuffer();
+            if (fsync) {
+                channel.force(true);
+            }
+        }
+        finally {
+            channel.close();
+        }
+    }
+
+    private void flushBuffer()
+            throws IOException
+    {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+}
@@ -0,0 +1,260 @@
+package org.embulk.output.hdfs.client;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.Path;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Spools files to the local disk, then uploads the finished files in parallel.
+// If skipUnchanged, the MD5 digest of each file is computed while spooling,
+// and the file is not uploaded when the existing file has the same content.
+public class LocalStagingUploader
+{
+    private static final Logger logger = Exec.getLogger(LocalStagingUploader.class);
+
+    private final HdfsClient hdfsClient;
+    private final File stagingDir;
+    private final long maxBytes;
+    private final boolean skipUnchanged;
+    private final boolean readBack;
+    private final ExecutorService executor;
+    private final List<Future<Void>> uploads = Lists.newArrayList();
+
+    private long stagedBytes = 0;  // guarded by this
+    private int pendingUploads = 0;  // guarded by this
+    private int fileIdx = 0;
+    private final AtomicLong skippedFiles = new AtomicLong(0);
+    private final AtomicLong skippedBytes = new AtomicLong(0);
+
+    public LocalStagingUploader(HdfsClient hdfsClient, String stagingDir, long maxBytes, int threads,
+            boolean skipUnchanged, boolean readBack)
+    {
+        this.hdfsClient = hdfsClient;
+        this.maxBytes = maxBytes;
+        this.skipUnchanged = skipUnchanged;
+        this.readBack = readBack;
+        try {
+            Files.createDirectories(Paths.get(stagingDir));
+            this.stagingDir = Files.createTempDirectory(Paths.get(stagingDir), "embulk-output-hdfs_").toFile();
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("embulk-output-hdfs-upload-%d")
+                .setDaemon(true)
+                .build());
+        logger.debug("Use as a local staging directory: {}", this.stagingDir);
+    }
+
+    public OutputStream stage(Path dst, boolean overwrite)
+    {
+        File file = new File(stagingDir, String.format("%05d.%s", fileIdx++, dst.getName()));
+        try {
+            return new StagedOutputStream(file, dst, overwrite);
+        }
+        catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public synchronized int getPendingUploads()
+    {
+        return pendingUploads;
+    }
+
+    public long getSkippedFiles()
+    {
+        return skippedFiles.get();
+    }
+
+    public long getSkippedBytes()
+    {
+        return skippedBytes.get();
+    }
+
+    public void awaitUploads()
+    {
+        List<Future<Void>> futures;
+        synchronized (this) {
+            futures = Lists.newArrayList(uploads);
+            uploads.clear();
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
+    public void close()
+    {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("Uploads are still running after the shutdown: {}", stagingDir);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        File[] files = stagingDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+        delete(stagingDir);
+    }
+
+    // Waits for the uploads while the staged bytes exceed maxBytes.
+    // NOTE: The file being staged is counted, but it is not bounded when nothing is being uploaded,
+    // because it cannot be uploaded until it is finished. So a file larger than maxBytes is spooled entirely.
+    private synchronized void reserve(long bytes)
+            throws IOException
+    {
+        while (stagedBytes + bytes > maxBytes && pendingUploads > 0) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+        }
+        stagedBytes += bytes;
+    }
+
+    private synchronized void release(long bytes)
+    {
+        stagedBytes -= bytes;
+        pendingUploads--;
+        notifyAll();
+    }
+
+    private synchronized void submit(final File file, final Path dst, final boolean overwrite, final long bytes,
+            final byte[] digest)
+    {
+        if (executor.isShutdown()) {
+            logger.debug("Discard a staged file because the uploader is closed: {}", file);
+            delete(file);
+            stagedBytes -= bytes;
+            return;
+        }
+        pendingUploads++;
+        uploads.add(executor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                    throws Exception
+            {
+                try {
+                    if (digest != null && hdfsClient.hasSameContent(dst, bytes, digest, readBack)) {
+                        logger.info("Skip uploading '{}' because the content is unchanged ({} bytes)", dst, bytes);
+                        skippedFiles.incrementAndGet();
+                        skippedBytes.addAndGet(bytes);
+                        return null;
+                    }
+                    logger.info("Uploading '{}' ({} bytes)", dst, bytes);
+                    hdfsClient.upload(file, dst, overwrite);
+                    if (digest != null) {
+                        hdfsClient.setDigest(dst, digest);
+                    }
+                    return null;
+                }
+                finally {
+                    delete(file);
+                    release(bytes);
+                }
+            }
+        }));
+    }
+
+    private void delete(File file)
+    {
+        if (file.exists() && !file.delete()) {
+            logger.warn("Failed to delete a staged file: {}", file);
+        }
+    }
+
+    private class StagedOutputStream
+            extends OutputStream
+    {
+        private final File file;
+        private final Path dst;
+        private final boolean overwrite;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long bytes = 0;
+
+        StagedOutputStream(File file, Path dst, boolean overwrite)
+                throws IOException
+        {
+            this.file = file;
+            this.dst = dst;
+            this.overwrite = overwrite;
+            this.channel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.digest = skipUnchanged ? HdfsClient.newDigest() : null;
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            reserve(len);
+            bytes += len;
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (!channel.isOpen()) {
+                return;
+            }
+            channel.close();
+            submit(file, dst, overwrite, bytes, digest == null ? null : digest.digest());
+        }
+    }
+}
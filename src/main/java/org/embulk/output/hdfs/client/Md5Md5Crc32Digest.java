@@ -0,0 +1,83 @@
+package org.embulk.output.hdfs.client;
+
+import org.apache.hadoop.util.DataChecksum;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+// Computes the same digest as the MD5-of-MD5-of-CRC checksum that HDFS returns by getFileChecksum:
+// the CRC of every `bytesPerCrc` bytes, the MD5 of the CRCs in each block, and the MD5 of the MD5s of the blocks.
+// NOTE: The digest depends on the block size and bytes-per-checksum, so they must be the same as the file was created with.
+// NOTE: HDFS takes the MD5 of the whole buffer of the MD5s of the blocks, including its unused capacity,
+// which starts at 32 bytes and doubles as ByteArrayOutputStream does, so the same buffer is built here.
+class Md5Md5Crc32Digest
+{
+    private final DataChecksum crc;
+    private final int bytesPerCrc;
+    private final long blockSize;
+    private final MessageDigest blockMd5 = HdfsClient.newDigest();
+    private byte[] blockMd5s = new byte[32];
+    private int blockMd5sLength = 0;
+    private final byte[] crcBytes = new byte[4];
+    private int chunkLength = 0;
+    private long blockLength = 0;
+
+    Md5Md5Crc32Digest(DataChecksum.Type crcType, int bytesPerCrc, long blockSize)
+    {
+        this.crc = DataChecksum.newDataChecksum(crcType, bytesPerCrc);
+        this.bytesPerCrc = bytesPerCrc;
+        this.blockSize = blockSize;
+    }
+
+    void update(byte[] b, int off, int len)
+    {
+        while (len > 0) {
+            int n = (int) Math.min(len, Math.min(bytesPerCrc - chunkLength, blockSize - blockLength));
+            crc.update(b, off, n);
+            chunkLength += n;
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (chunkLength == bytesPerCrc) {
+                finishChunk();
+            }
+            if (blockLength == blockSize) {
+                finishBlock();
+            }
+        }
+    }
+
+    byte[] digest()
+    {
+        if (blockLength > 0) {
+            finishBlock();
+        }
+        return HdfsClient.newDigest().digest(blockMd5s);
+    }
+
+    private void finishChunk()
+    {
+        int value = (int) crc.getValue();
+        crcBytes[0] = (byte) (value >>> 24);
+        crcBytes[1] = (byte) (value >>> 16);
+        crcBytes[2] = (byte) (value >>> 8);
+        crcBytes[3] = (byte) value;
+        blockMd5.update(crcBytes);
+        crc.reset();
+        chunkLength = 0;
+    }
+
+    private void finishBlock()
+    {
+        if (chunkLength > 0) {
+            finishChunk();
+        }
+        byte[] md5 = blockMd5.digest();
+        if (blockMd5sLength + md5.length > blockMd5s.length) {
+            blockMd5s = Arrays.copyOf(blockMd5s, Math.max(blockMd5s.length * 2, blockMd5sLength + md5.length));
+        }
+        System.arraycopy(md5, 0, blockMd5s, blockMd5sLength, md5.length);
+        blockMd5sLength += md5.length;
+        blockLength = 0;
+    }
+}
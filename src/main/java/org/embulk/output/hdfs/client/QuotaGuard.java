@@ -0,0 +1,131 @@
+package org.embulk.output.hdfs.client;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.QuotaUsage;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.QuotaCheck;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Tracks the quota headroom of the output directory while a task writes files,
+// and stops the task before HDFS throws the quota exceeded exception in the middle of the pipeline.
+// HDFS reserves the space of a whole block times the replication when allocating a block,
+// so the headroom must be more than that to start the next block.
+// If the files are moved to the output directory under another quota root by the transaction, e.g. from the workspace
+// in replace mode, the headroom of the output directory must be more than the files written by this task so far.
+public class QuotaGuard
+{
+    private static final Logger logger = Exec.getLogger(QuotaGuard.class);
+
+    // Builds the guards of the quota roots of the directory the files are written to and the output directory.
+    public static List<QuotaGuard> build(HdfsClient hdfsClient, Path writeDir, Path outputDir, QuotaCheck quotaCheck)
+    {
+        List<QuotaGuard> guards = Lists.newArrayList();
+        if (quotaCheck == QuotaCheck.NONE) {
+            return guards;
+        }
+        boolean abort = quotaCheck == QuotaCheck.ABORT;
+        short replication = hdfsClient.getDefaultReplication(writeDir);
+        Optional<Path> writeRoot = hdfsClient.findQuotaRoot(writeDir);
+        if (writeRoot.isPresent()) {
+            long reservedBytes = hdfsClient.getDefaultBlockSize(writeDir) * replication;
+            guards.add(new QuotaGuard(hdfsClient, writeRoot.get(), abort, reservedBytes, false));
+        }
+        Optional<Path> outputRoot = hdfsClient.findQuotaRoot(outputDir);
+        if (outputRoot.isPresent() && !outputRoot.equals(writeRoot)) {
+            guards.add(new QuotaGuard(hdfsClient, outputRoot.get(), abort, replication, true));
+        }
+        return guards;
+    }
+
+    // NOTE: The quota is checked at most once per this interval when opening files, not to call an RPC per file.
+    private static final long CHECK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final HdfsClient hdfsClient;
+    private final Path quotaRoot;
+    private final boolean abort;
+    // The space required for a block if not deferred, or the replication of the written bytes if deferred.
+    private final long reservedBytes;
+    private final boolean deferred;
+    private final long checkIntervalBytes;
+    private QuotaUsage usage = null;
+    private long lastCheckNanos = 0;
+    private long uncheckedBytes = 0;
+    private long opensSinceCheck = 0;
+    private long writtenBytes = 0;
+    private long opens = 0;
+    private boolean warned = false;
+
+    QuotaGuard(HdfsClient hdfsClient, Path quotaRoot, boolean abort, long reservedBytes, boolean deferred)
+    {
+        this.hdfsClient = hdfsClient;
+        this.quotaRoot = quotaRoot;
+        this.abort = abort;
+        this.reservedBytes = reservedBytes;
+        this.deferred = deferred;
+        // NOTE: The other tasks consume the quota too, so check more often than the block size.
+        this.checkIntervalBytes = deferred ? Long.MAX_VALUE : Math.max(1, reservedBytes / 4);
+    }
+
+    public void beforeOpen(Path path)
+    {
+        // The names are counted by this task between the checks, and checked again before they run out.
+        if (usage == null || uncheckedBytes >= checkIntervalBytes || getNamespaceHeadroom() < 1
+                || System.nanoTime() - lastCheckNanos >= CHECK_INTERVAL_NANOS) {
+            check();
+        }
+        if (getNamespaceHeadroom() < 1) {
+            onExhausted(String.format("The namespace quota of %s is exhausted (quota: %d, used: %d) before creating %s",
+                    quotaRoot, usage.getQuota(), usage.getQuota() - getNamespaceHeadroom(), path));
+        }
+        opensSinceCheck++;
+        opens++;
+    }
+
+    public void onWrite(long bytes)
+    {
+        uncheckedBytes += bytes;
+        writtenBytes += bytes;
+        if (uncheckedBytes >= checkIntervalBytes) {
+            check();
+        }
+    }
+
+    private void check()
+    {
+        usage = hdfsClient.getQuotaUsage(quotaRoot);
+        lastCheckNanos = System.nanoTime();
+        uncheckedBytes = 0;
+        opensSinceCheck = 0;
+        long requiredBytes = deferred ? writtenBytes * reservedBytes : reservedBytes;
+        if (usage.getSpaceQuota() >= 0 && usage.getSpaceQuota() - usage.getSpaceConsumed() < requiredBytes) {
+            onExhausted(String.format("The space quota of %s is almost exhausted (quota: %d, consumed: %d, required: %d)",
+                    quotaRoot, usage.getSpaceQuota(), usage.getSpaceConsumed(), requiredBytes));
+        }
+    }
+
+    private long getNamespaceHeadroom()
+    {
+        if (usage.getQuota() < 0) {
+            return Long.MAX_VALUE;
+        }
+        // NOTE: If deferred, the files of this task are not in the usage until they are moved.
+        return usage.getQuota() - usage.getFileAndDirectoryCount() - (deferred ? opens : opensSinceCheck);
+    }
+
+    private void onExhausted(String message)
+    {
+        if (abort) {
+            throw new DataException(message + ". Stop writing.");
+        }
+        if (!warned) {
+            logger.warn(message);
+            warned = true;
+        }
+    }
+}
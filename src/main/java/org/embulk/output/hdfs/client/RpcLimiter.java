@@ -0,0 +1,91 @@
+package org.embulk.output.hdfs.client;
+
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+// JVM-wide token bucket of the metadata RPCs to the NameNode, shared by all the tasks.
+// The bucket holds up to one second of tokens, so that a burst like the start of the tasks does not exceed the rate.
+// The commit-critical operations are served first: the other operations wait while any of them is waiting.
+// Tasks over the rate wait instead of failing.
+public class RpcLimiter
+{
+    private static final Logger logger = Exec.getLogger(RpcLimiter.class);
+    private static RpcLimiter instance = null;
+
+    public static synchronized RpcLimiter getInstance(int rpcsPerSecond)
+    {
+        if (instance == null || instance.rpcsPerSecond != rpcsPerSecond) {
+            instance = new RpcLimiter(rpcsPerSecond);
+        }
+        return instance;
+    }
+
+    private final int rpcsPerSecond;
+    private final long nanosPerToken;
+
+    private double tokens;
+    private long lastRefillNanos;
+    private int priorityWaiters = 0;
+
+    private RpcLimiter(int rpcsPerSecond)
+    {
+        this.rpcsPerSecond = rpcsPerSecond;
+        this.nanosPerToken = TimeUnit.SECONDS.toNanos(1) / rpcsPerSecond;
+        this.tokens = rpcsPerSecond;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    // Returns the nanoseconds waited for the token.
+    public synchronized long acquire(boolean priority)
+            throws InterruptedIOException
+    {
+        long startNanos = System.nanoTime();
+        if (priority) {
+            priorityWaiters++;
+        }
+        try {
+            boolean waited = false;
+            while (true) {
+                refill();
+                if (tokens >= 1 && (priority || priorityWaiters == 0)) {
+                    tokens -= 1;
+                    return System.nanoTime() - startNanos;
+                }
+                if (!waited) {
+                    logger.debug("Wait for an RPC token (rate: {}/s, priority: {})", rpcsPerSecond, priority);
+                    waited = true;
+                }
+                // NOTE: The waiters for the priority are notified when it is done.
+                await(tokens >= 1 ? nanosPerToken : (long) ((1 - tokens) * nanosPerToken));
+            }
+        }
+        finally {
+            if (priority) {
+                priorityWaiters--;
+                notifyAll();
+            }
+        }
+    }
+
+    private void refill()
+    {
+        long now = System.nanoTime();
+        tokens = Math.min(rpcsPerSecond, tokens + (double) (now - lastRefillNanos) / nanosPerToken);
+        lastRefillNanos = now;
+    }
+
+    private void await(long nanos)
+            throws InterruptedIOException
+    {
+        try {
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(nanos, 1));
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.embulk.output.hdfs.client;
+
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+// JVM-wide limiter of the open output streams and the bytes being written into them.
+// The number of permitted streams is adapted AIMD-style from the observed write and close latency:
+// increased by 1 per the permitted number of fast operations, and halved on a slow operation.
+// Tasks over the limit wait instead of failing.
+public class StreamLimiter
+{
+    private static final Logger logger = Exec.getLogger(StreamLimiter.class);
+    private static StreamLimiter instance = null;
+
+    public static synchronized StreamLimiter getInstance(int maxStreams, long maxBufferedBytes, long latencyTargetMillis)
+    {
+        if (instance == null) {
+            instance = new StreamLimiter(maxStreams, maxBufferedBytes, latencyTargetMillis);
+        }
+        else {
+            // NOTE: The instance is reconfigured instead of replaced, to keep the accounting of the open streams.
+            instance.configure(maxStreams, maxBufferedBytes, latencyTargetMillis);
+        }
+        return instance;
+    }
+
+    private int maxStreams;
+    private long maxBufferedBytes;
+    private long latencyTargetNanos;
+
+    private double limit;
+    private int openStreams = 0;
+    private int peakOpenStreams = 0;
+    private long bufferedBytes = 0;
+    private long lastDecreaseNanos = 0;
+
+    StreamLimiter(int maxStreams, long maxBufferedBytes, long latencyTargetMillis)
+    {
+        this.maxStreams = maxStreams;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+        this.limit = maxStreams;
+    }
+
+    private synchronized void configure(int maxStreams, long maxBufferedBytes, long latencyTargetMillis)
+    {
+        long latencyTargetNanos = TimeUnit.MILLISECONDS.toNanos(latencyTargetMillis);
+        if (this.maxStreams == maxStreams && this.maxBufferedBytes == maxBufferedBytes
+                && this.latencyTargetNanos == latencyTargetNanos) {
+            return;
+        }
+        logger.info("Reconfigure the limit of output streams: max {} streams, {} bytes, {} ms (open: {})",
+                maxStreams, maxBufferedBytes, latencyTargetMillis, openStreams);
+        this.maxStreams = maxStreams;
+        this.maxBufferedBytes = maxBufferedBytes;
+        this.latencyTargetNanos = latencyTargetNanos;
+        this.limit = Math.min(limit, maxStreams);
+        notifyAll();
+    }
+
+    public OutputStream wrap(OutputStream out)
+    {
+        return new LimitedOutputStream(out);
+    }
+
+    public static OutputStream unwrap(OutputStream out)
+    {
+        if (out instanceof LimitedOutputStream) {
+            return ((LimitedOutputStream) out).out;
+        }
+        return out;
+    }
+
+    public synchronized void acquireStream()
+            throws InterruptedIOException
+    {
+        boolean waited = false;
+        while (openStreams >= (int) limit) {
+            if (!waited) {
+                logger.debug("Wait for an output stream (open: {}, limit: {})", openStreams, (int) limit);
+                waited = true;
+            }
+            await();
+        }
+        openStreams++;
+        peakOpenStreams = Math.max(peakOpenStreams, openStreams);
+    }
+
+    public synchronized void releaseStream()
+    {
+        openStreams--;
+        notifyAll();
+    }
+
+    public synchronized int getLimit()
+    {
+        return (int) limit;
+    }
+
+    public synchronized int getOpenStreams()
+    {
+        return openStreams;
+    }
+
+    public synchronized int getPeakOpenStreams()
+    {
+        return peakOpenStreams;
+    }
+
+    private synchronized void acquireBytes(long bytes)
+            throws InterruptedIOException
+    {
+        while (bufferedBytes > 0 && bufferedBytes + bytes > maxBufferedBytes) {
+            await();
+        }
+        bufferedBytes += bytes;
+    }
+
+    private synchronized void releaseBytes(long bytes)
+    {
+        bufferedBytes -= bytes;
+        notifyAll();
+    }
+
+    private synchronized void onLatency(long nanos)
+    {
+        long now = System.nanoTime();
+        if (nanos > latencyTargetNanos) {
+            // Decrease at most once per the latency target, because the slow operations are usually bursty.
+            if (now - lastDecreaseNanos > latencyTargetNanos) {
+                limit = Math.max(1.0, limit / 2);
+                lastDecreaseNanos = now;
+                logger.info("Decrease the limit of output streams to {} (latency: {} ms)",
+                        (int) limit, TimeUnit.NANOSECONDS.toMillis(nanos));
+            }
+        }
+        else if (limit < maxStreams) {
+            int before = (int) limit;
+            limit = Math.min(maxStreams, limit + 1.0 / limit);
+            if ((int) limit > before) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void await()
+            throws InterruptedIOException
+    {
+        try {
+            wait();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    private class LimitedOutputStream
+            extends OutputStream
+    {
+        private final OutputStream out;
+        private boolean closed = false;
+
+        LimitedOutputStream(OutputStream out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+                throws IOException
+        {
+            acquireBytes(len);
+            try {
+                long startNanos = System.nanoTime();
+                out.write(b, off, len);
+                onLatency(System.nanoTime() - startNanos);
+            }
+            finally {
+                releaseBytes(len);
+            }
+        }
+
+        @Override
+        public void flush()
+                throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close()
+                throws IOException
+        {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                // close waits for the acks of the last packets.
+                long startNanos = System.nanoTime();
+                out.close();
+                onLatency(System.nanoTime() - startNanos);
+            }
+            finally {
+                releaseStream();
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package org.embulk.output.hdfs.client;
+
+import com.google.common.base.Optional;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.Path;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// Creates the next file speculatively while the current file is being written, to hide the latency of the create RPC.
+// The file is always created without overwrite, so the existing file is never truncated by the speculation;
+// if the speculation fails, the caller creates the file as usual. The unused file is deleted.
+public class StreamPreOpener
+{
+    private static final Logger logger = Exec.getLogger(StreamPreOpener.class);
+
+    private final HdfsClient hdfsClient;
+    private final ExecutorService executor;
+    private Path pendingPath = null;
+    private Future<OutputStream> pending = null;
+
+    public StreamPreOpener(HdfsClient hdfsClient)
+    {
+        this.hdfsClient = hdfsClient;
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("embulk-output-hdfs-preopen-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    public void preOpen(final Path path)
+    {
+        discard();
+        pendingPath = path;
+        pending = executor.submit(new Callable<OutputStream>()
+        {
+            @Override
+            public OutputStream call()
+            {
+                return hdfsClient.create(path, false);
+            }
+        });
+    }
+
+    // Returns the pre-opened stream if the path is pre-opened successfully.
+    public Optional<OutputStream> take(Path path)
+    {
+        if (pending == null || !path.equals(pendingPath)) {
+            return Optional.absent();
+        }
+        Future<OutputStream> future = pending;
+        pending = null;
+        pendingPath = null;
+        try {
+            return Optional.of(future.get());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            logger.debug("Failed to pre-open {}: {}", path, e.getCause().getMessage());
+            return Optional.absent();
+        }
+    }
+
+    // Closes and deletes the pre-opened file which is not used.
+    public void discard()
+    {
+        if (pending == null) {
+            return;
+        }
+        Future<OutputStream> future = pending;
+        Path path = pendingPath;
+        pending = null;
+        pendingPath = null;
+        OutputStream out;
+        try {
+            out = future.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        catch (ExecutionException e) {
+            return;
+        }
+        try {
+            out.close();
+            logger.debug("Delete the unused pre-opened file: {}", path);
+            if (!hdfsClient.delete(path, false)) {
+                logger.warn("Failed to delete the unused pre-opened file: {}", path);
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            logger.warn(String.format("Failed to delete the unused pre-opened file: %s", path), e);
+        }
+    }
+
+    public void close()
+    {
+        discard();
+        executor.shutdownNow();
+    }
+}
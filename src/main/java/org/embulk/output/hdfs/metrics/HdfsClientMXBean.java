@@ -0,0 +1,20 @@
+package org.embulk.output.hdfs.metrics;
+
+public interface HdfsClientMXBean
+{
+    long getOperationCount();
+
+    long getRetryCount();
+
+    long getRpcCount();
+
+    long getRpcWaitMillis();
+
+    long getListedEntries();
+
+    double getListedEntriesPerSecond();
+
+    long getDeletedEntries();
+
+    double getDeletedEntriesPerSecond();
+}
@@ -0,0 +1,127 @@
+package org.embulk.output.hdfs.metrics;
+
+import com.google.common.collect.ImmutableSortedMap;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HdfsClientMetrics
+        implements HdfsClientMXBean
+{
+    private final AtomicLong operations = new AtomicLong(0);
+    private final AtomicLong retries = new AtomicLong(0);
+    private final ConcurrentMap<String, AtomicLong> rpcs = new ConcurrentHashMap<>();
+    private final AtomicLong rpcWaitNanos = new AtomicLong(0);
+    private final OperationLatencies latencies = new OperationLatencies();
+    private final Meter listed = new Meter();
+    private final Meter deleted = new Meter();
+
+    public void onOperation()
+    {
+        operations.incrementAndGet();
+    }
+
+    public void onRpc(String operation, long waitNanos)
+    {
+        AtomicLong count = rpcs.get(operation);
+        if (count == null) {
+            AtomicLong created = new AtomicLong(0);
+            count = rpcs.putIfAbsent(operation, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+        rpcWaitNanos.addAndGet(waitNanos);
+    }
+
+    public SortedMap<String, Long> getRpcCounts()
+    {
+        ImmutableSortedMap.Builder<String, Long> counts = ImmutableSortedMap.naturalOrder();
+        for (Map.Entry<String, AtomicLong> entry : rpcs.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return counts.build();
+    }
+
+    public void onLatency(String operation, long nanos)
+    {
+        latencies.record(operation, nanos);
+    }
+
+    public OperationLatencies getLatencies()
+    {
+        return latencies;
+    }
+
+    public void onListed(long n)
+    {
+        listed.mark(n);
+    }
+
+    public void onDeleted(long n)
+    {
+        deleted.mark(n);
+    }
+
+    public void onRetry()
+    {
+        retries.incrementAndGet();
+    }
+
+    @Override
+    public long getOperationCount()
+    {
+        return operations.get();
+    }
+
+    @Override
+    public long getRetryCount()
+    {
+        return retries.get();
+    }
+
+    @Override
+    public long getRpcCount()
+    {
+        long total = 0;
+        for (AtomicLong count : rpcs.values()) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    @Override
+    public long getRpcWaitMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(rpcWaitNanos.get());
+    }
+
+    @Override
+    public long getListedEntries()
+    {
+        return listed.getCount();
+    }
+
+    @Override
+    public double getListedEntriesPerSecond()
+    {
+        return listed.getOneMinuteRate();
+    }
+
+    @Override
+    public long getDeletedEntries()
+    {
+        return deleted.getCount();
+    }
+
+    @Override
+    public double getDeletedEntriesPerSecond()
+    {
+        return deleted.getOneMinuteRate();
+    }
+}
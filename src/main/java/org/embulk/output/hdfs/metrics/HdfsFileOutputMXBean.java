@@ -0,0 +1,24 @@
+package org.embulk.output.hdfs.metrics;
+
+public interface HdfsFileOutputMXBean
+{
+    int getTaskIndex();
+
+    String getCurrentFile();
+
+    long getFilesWritten();
+
+    long getBytesWritten();
+
+    int getBuffersQueued();
+
+    double getOneMinuteRate();
+
+    double getFiveMinuteRate();
+
+    double getFifteenMinuteRate();
+
+    long getLastProgressAgeMillis();
+
+    long getRetryCount();
+}
@@ -0,0 +1,127 @@
+package org.embulk.output.hdfs.metrics;
+
+import com.google.common.base.Supplier;
+import com.google.common.base.Suppliers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class HdfsFileOutputMetrics
+        implements HdfsFileOutputMXBean
+{
+    private final int taskIndex;
+    private final HdfsClientMetrics clientMetrics;
+    private final Meter bytes = new Meter();
+    private final HdfsOutputAggregate aggregate = HdfsOutputAggregate.getInstance();
+    private final AtomicLong files = new AtomicLong(0);
+    private final AtomicLong retries = new AtomicLong(0);
+    private final OperationLatencies latencies = new OperationLatencies();
+    private volatile String currentFile = "";
+    private volatile long lastProgressNanos = System.nanoTime();
+    private volatile Supplier<Integer> buffersQueued = Suppliers.ofInstance(0);
+
+    public HdfsFileOutputMetrics(int taskIndex, HdfsClientMetrics clientMetrics)
+    {
+        this.taskIndex = taskIndex;
+        this.clientMetrics = clientMetrics;
+    }
+
+    public void setBuffersQueued(Supplier<Integer> buffersQueued)
+    {
+        this.buffersQueued = buffersQueued;
+    }
+
+    public void onOpen(String path)
+    {
+        currentFile = path;
+        files.incrementAndGet();
+        lastProgressNanos = System.nanoTime();
+    }
+
+    public void onWrite(long n, long nanos)
+    {
+        latencies.record("write", nanos);
+        bytes.mark(n);
+        aggregate.onWrite(n);
+        lastProgressNanos = System.nanoTime();
+    }
+
+    public void onClose(String path, long nanos)
+    {
+        latencies.record("close", nanos);
+        if (path.equals(currentFile)) {
+            currentFile = "";
+        }
+        lastProgressNanos = System.nanoTime();
+    }
+
+    public OperationLatencies getLatencies()
+    {
+        return latencies;
+    }
+
+    public void onRetry()
+    {
+        retries.incrementAndGet();
+    }
+
+    @Override
+    public int getTaskIndex()
+    {
+        return taskIndex;
+    }
+
+    @Override
+    public String getCurrentFile()
+    {
+        return currentFile;
+    }
+
+    @Override
+    public long getFilesWritten()
+    {
+        return files.get();
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return bytes.getCount();
+    }
+
+    @Override
+    public int getBuffersQueued()
+    {
+        return buffersQueued.get();
+    }
+
+    @Override
+    public double getOneMinuteRate()
+    {
+        return bytes.getOneMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate()
+    {
+        return bytes.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getFifteenMinuteRate()
+    {
+        return bytes.getFifteenMinuteRate();
+    }
+
+    @Override
+    public long getLastProgressAgeMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastProgressNanos);
+    }
+
+    @Override
+    public long getRetryCount()
+    {
+        return retries.get() + clientMetrics.getRetryCount();
+    }
+}
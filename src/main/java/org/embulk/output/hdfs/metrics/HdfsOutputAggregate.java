@@ -0,0 +1,119 @@
+package org.embulk.output.hdfs.metrics;
+
+import com.google.common.collect.Sets;
+
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Aggregates the metrics of all the tasks in the JVM.
+public class HdfsOutputAggregate
+        implements HdfsOutputAggregateMXBean
+{
+    private static HdfsOutputAggregate instance = null;
+
+    public static synchronized HdfsOutputAggregate getInstance()
+    {
+        if (instance == null) {
+            instance = new HdfsOutputAggregate();
+            MBeans.register("type=HdfsOutputAggregate", instance);
+        }
+        return instance;
+    }
+
+    private final Set<HdfsFileOutputMetrics> activeTasks = Sets.newConcurrentHashSet();
+    private final Meter bytes = new Meter();
+    private final AtomicLong finishedFiles = new AtomicLong(0);
+    private final AtomicLong finishedRetries = new AtomicLong(0);
+
+    private HdfsOutputAggregate()
+    {
+    }
+
+    public void add(HdfsFileOutputMetrics metrics)
+    {
+        activeTasks.add(metrics);
+    }
+
+    public void remove(HdfsFileOutputMetrics metrics)
+    {
+        if (activeTasks.remove(metrics)) {
+            finishedFiles.addAndGet(metrics.getFilesWritten());
+            finishedRetries.addAndGet(metrics.getRetryCount());
+        }
+    }
+
+    void onWrite(long n)
+    {
+        bytes.mark(n);
+    }
+
+    @Override
+    public int getActiveTasks()
+    {
+        return activeTasks.size();
+    }
+
+    @Override
+    public long getBytesWritten()
+    {
+        return bytes.getCount();
+    }
+
+    @Override
+    public long getFilesWritten()
+    {
+        long n = finishedFiles.get();
+        for (HdfsFileOutputMetrics metrics : activeTasks) {
+            n += metrics.getFilesWritten();
+        }
+        return n;
+    }
+
+    @Override
+    public int getBuffersQueued()
+    {
+        int n = 0;
+        for (HdfsFileOutputMetrics metrics : activeTasks) {
+            n += metrics.getBuffersQueued();
+        }
+        return n;
+    }
+
+    @Override
+    public double getOneMinuteRate()
+    {
+        return bytes.getOneMinuteRate();
+    }
+
+    @Override
+    public double getFiveMinuteRate()
+    {
+        return bytes.getFiveMinuteRate();
+    }
+
+    @Override
+    public double getFifteenMinuteRate()
+    {
+        return bytes.getFifteenMinuteRate();
+    }
+
+    @Override
+    public long getMaxLastProgressAgeMillis()
+    {
+        long max = 0;
+        for (HdfsFileOutputMetrics metrics : activeTasks) {
+            max = Math.max(max, metrics.getLastProgressAgeMillis());
+        }
+        return max;
+    }
+
+    @Override
+    public long getRetryCount()
+    {
+        long n = finishedRetries.get();
+        for (HdfsFileOutputMetrics metrics : activeTasks) {
+            n += metrics.getRetryCount();
+        }
+        return n;
+    }
+}
@@ -0,0 +1,22 @@
+package org.embulk.output.hdfs.metrics;
+
+public interface HdfsOutputAggregateMXBean
+{
+    int getActiveTasks();
+
+    long getBytesWritten();
+
+    long getFilesWritten();
+
+    int getBuffersQueued();
+
+    double getOneMinuteRate();
+
+    double getFiveMinuteRate();
+
+    double getFifteenMinuteRate();
+
+    long getMaxLastProgressAgeMillis();
+
+    long getRetryCount();
+}
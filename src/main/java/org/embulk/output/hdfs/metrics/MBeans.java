@@ -0,0 +1,65 @@
+package org.embulk.output.hdfs.metrics;
+
+import com.google.common.base.Optional;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class MBeans
+{
+    private static final Logger logger = Exec.getLogger(MBeans.class);
+    private static final String DOMAIN = "org.embulk.output.hdfs";
+    private static final AtomicLong ids = new AtomicLong(0);
+
+    private MBeans()
+    {
+    }
+
+    // Returns the unique id to distinguish the tasks of the different transactions in the same JVM.
+    public static long nextId()
+    {
+        return ids.incrementAndGet();
+    }
+
+    // Returns absent if failed to register or the name is already registered by another, because MBeans are only for the monitoring.
+    // Only the registered name should be unregistered, not to unregister the MBean of another.
+    public static Optional<ObjectName> register(String keyProperties, Object mbean)
+    {
+        try {
+            ObjectName objectName = new ObjectName(String.format("%s:%s", DOMAIN, keyProperties));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, objectName);
+            return Optional.of(objectName);
+        }
+        catch (InstanceAlreadyExistsException e) {
+            logger.warn("MBean is already registered: {}", keyProperties);
+            return Optional.absent();
+        }
+        catch (JMException e) {
+            logger.warn(String.format("Failed to register MBean: %s", keyProperties), e);
+            return Optional.absent();
+        }
+    }
+
+    public static void unregister(Optional<ObjectName> objectName)
+    {
+        if (!objectName.isPresent()) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName.get())) {
+                server.unregisterMBean(objectName.get());
+            }
+        }
+        catch (JMException e) {
+            logger.warn(String.format("Failed to unregister MBean: %s", objectName.get()), e);
+        }
+    }
+}
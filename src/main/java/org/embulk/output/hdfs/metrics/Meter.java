@@ -0,0 +1,119 @@
+package org.embulk.output.hdfs.metrics;
+
+import com.google.common.base.Ticker;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Counts events and their 1, 5 and 15-minute exponentially-weighted moving average rates per second,
+// the same as the load averages of Unix.
+// NOTE: This is marked on every write of all the tasks, so marking does not lock: the events are added to
+// LongAdders, and only the thread which wins the CAS of the tick time updates the rates.
+public class Meter
+{
+    private static final long TICK_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final Ewma m1 = new Ewma(1);
+    private final Ewma m5 = new Ewma(5);
+    private final Ewma m15 = new Ewma(15);
+    private final Ticker ticker;
+    private final LongAdder count = new LongAdder();
+    private final AtomicLong lastTickNanos;
+
+    public Meter()
+    {
+        this(Ticker.systemTicker());
+    }
+
+    Meter(Ticker ticker)
+    {
+        this.ticker = ticker;
+        this.lastTickNanos = new AtomicLong(ticker.read());
+    }
+
+    public void mark(long n)
+    {
+        tickIfNecessary();
+        count.add(n);
+        m1.update(n);
+        m5.update(n);
+        m15.update(n);
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public double getOneMinuteRate()
+    {
+        tickIfNecessary();
+        return m1.getRate();
+    }
+
+    public double getFiveMinuteRate()
+    {
+        tickIfNecessary();
+        return m5.getRate();
+    }
+
+    public double getFifteenMinuteRate()
+    {
+        tickIfNecessary();
+        return m15.getRate();
+    }
+
+    private void tickIfNecessary()
+    {
+        long lastTick = lastTickNanos.get();
+        long age = ticker.read() - lastTick;
+        if (age < TICK_INTERVAL_NANOS) {
+            return;
+        }
+        long ticks = age / TICK_INTERVAL_NANOS;
+        if (lastTickNanos.compareAndSet(lastTick, lastTick + ticks * TICK_INTERVAL_NANOS)) {
+            for (long i = 0; i < ticks; i++) {
+                m1.tick();
+                m5.tick();
+                m15.tick();
+            }
+        }
+    }
+
+    private static class Ewma
+    {
+        private final double alpha;
+        private final LongAdder uncounted = new LongAdder();
+        private volatile double rate = 0.0;
+        private volatile boolean initialized = false;
+
+        Ewma(int minutes)
+        {
+            this.alpha = 1 - Math.exp(-TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL_NANOS) / 60.0 / minutes);
+        }
+
+        void update(long n)
+        {
+            uncounted.add(n);
+        }
+
+        // NOTE: This is called only by the thread which wins the CAS of the tick time.
+        void tick()
+        {
+            double instantRate = (double) uncounted.sumThenReset() / TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL_NANOS);
+            if (initialized) {
+                rate += alpha * (instantRate - rate);
+            }
+            else {
+                rate = instantRate;
+                initialized = true;
+            }
+        }
+
+        double getRate()
+        {
+            return rate;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.embulk.output.hdfs.metrics;
+
+import com.google.common.collect.ImmutableSortedMap;
+import org.embulk.config.TaskReport;
+import org.embulk.spi.Exec;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+// Latency histograms per operation.
+public class OperationLatencies
+{
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    public void record(String operation, long nanos)
+    {
+        LatencyHistogram histogram = histograms.get(operation);
+        if (histogram == null) {
+            LatencyHistogram created = new LatencyHistogram();
+            histogram = histograms.putIfAbsent(operation, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    public SortedMap<String, LatencyHistogram> getHistograms()
+    {
+        return ImmutableSortedMap.copyOf(histograms);
+    }
+
+    // Adds the summary of each operation to the report like `{"create": {"count": 1, "p50_ms": 1.0, ...}}`.
+    public void summarizeTo(TaskReport report)
+    {
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            report.setNested(entry.getKey(), Exec.newTaskReport()
+                    .set("count", h.getCount())
+                    .set("p50_ms", toMillis(h.getPercentileMicros(50.0)))
+                    .set("p99_ms", toMillis(h.getPercentileMicros(99.0)))
+                    .set("max_ms", toMillis(h.getMaxMicros())));
+        }
+    }
+
+    private static double toMillis(long micros)
+    {
+        return micros / 1000.0;
+    }
+}
@@ -1,20 +1,33 @@
 package org.embulk.output.hdfs.transaction;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.fs.Path;
 import org.embulk.config.ConfigDiff;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
 import org.embulk.output.hdfs.HdfsFileOutput;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.QuotaCheck;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.Namespaces;
+import org.embulk.output.hdfs.util.SamplePath;
 import org.embulk.output.hdfs.util.StrftimeUtil;
 import org.embulk.spi.Exec;
 import org.embulk.spi.TransactionalFileOutput;
+import org.slf4j.Logger;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
 
 import static org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask;
 
 abstract class AbstractTx
         implements Tx
 {
+    private static final Logger logger = Exec.getLogger(AbstractTx.class);
+
     protected void beforeRun(PluginTask task)
     {
     }
@@ -23,31 +36,183 @@ abstract class AbstractTx
     {
     }
 
-    protected ConfigDiff newConfigDiff()
+    protected ConfigDiff newConfigDiff(PluginTask task, List<TaskReport> reports)
+    {
+        ConfigDiff configDiff = Exec.newConfigDiff();
+        if (task.getContinueSequence()) {
+            // The next run starts numbering from the next of the highest task index that wrote files.
+            int nextOffset = task.getSequenceTaskOffset();
+            for (TaskReport report : reports) {
+                if (report.get(Integer.class, HdfsFileOutput.WRITTEN_FILES, 0) > 0) {
+                    int taskIndex = report.get(Integer.class, HdfsFileOutput.TASK_INDEX);
+                    nextOffset = Math.max(nextOffset, task.getSequenceTaskOffset() + taskIndex + 1);
+                }
+            }
+            configDiff.set("sequence_task_offset", nextOffset);
+        }
+        if (task.getQuotaCheck() != QuotaCheck.NONE) {
+            // The stats to estimate the output of the next run.
+            long bytes = 0;
+            int files = 0;
+            for (TaskReport report : reports) {
+                bytes += report.get(Long.class, HdfsFileOutput.BYTES_WRITTEN, 0L);
+                files += report.get(Integer.class, HdfsFileOutput.WRITTEN_FILES, 0);
+            }
+            configDiff.set("last_output_bytes", bytes);
+            configDiff.set("last_output_files", files);
+        }
+        return configDiff;
+    }
+
+    // Called when the transaction fails, before finallyRun.
+    protected void onFailure(PluginTask task)
+    {
+    }
+
+    // Called at the end of the transaction whether it succeeds or not.
+    protected void finallyRun(PluginTask task)
     {
-        return Exec.newConfigDiff();
     }
 
     public ConfigDiff transaction(PluginTask task, ControlRun control)
     {
-        beforeRun(task);
-        List<TaskReport> reports = control.run();
-        afterRun(task, reports);
-        return newConfigDiff();
+        List<TaskReport> reports;
+        try {
+            List<String> outputDirs = resolveNamespaces(task, getOutputSampleDir(task));
+            for (String outputDir : outputDirs) {
+                QuotaPreflight.check(task, new Path(outputDir), outputDirs.size());
+            }
+            beforeRun(task);
+            if (task.getPrecreateDirectories()) {
+                DirectoryPrecreator.precreate(task, getPathPrefix(task), getFileExt(task));
+            }
+            reports = control.run();
+            logRpcCounts(reports);
+            afterRun(task, reports);
+            if (task.getWriteReplication().isPresent()) {
+                ReplicationRaiser.raise(task, getCommittedPaths(task, reports));
+            }
+            writeIndex(task, reports);
+        }
+        catch (RuntimeException | Error e) {
+            try {
+                onFailure(task);
+            }
+            catch (RuntimeException failure) {
+                e.addSuppressed(failure);
+            }
+            throw e;
+        }
+        finally {
+            finallyRun(task);
+        }
+        return newConfigDiff(task, reports);
+    }
+
+    // Logs the RPCs of all the tasks, to compare with the RPC budget of the user on the NameNode.
+    private void logRpcCounts(List<TaskReport> reports)
+    {
+        Map<String, Long> counts = Maps.newTreeMap();
+        long waitMillis = 0;
+        for (TaskReport report : reports) {
+            if (!report.has(HdfsFileOutput.RPC_COUNTS)) {
+                continue;
+            }
+            TaskReport rpcs = report.getNested(HdfsFileOutput.RPC_COUNTS);
+            for (String operation : rpcs.getAttributeNames()) {
+                Long count = counts.get(operation);
+                counts.put(operation, (count == null ? 0L : count) + rpcs.get(Long.class, operation));
+            }
+            waitMillis += report.get(Long.class, HdfsFileOutput.RPC_WAIT_MS, 0L);
+        }
+        logger.info("RPCs of the tasks: {} (waited {} ms for max_rpcs_per_second)", counts, waitMillis);
     }
 
+    // Called after the transaction is committed.
+    public void cleanup(PluginTask task, List<TaskReport> successTaskReports)
+    {
+    }
+
+    // The path prefix which the tasks write the files with.
     protected String getPathPrefix(PluginTask task)
+    {
+        return getOutputPathPrefix(task);
+    }
+
+    // The path prefix of the output after the transaction is committed.
+    protected String getOutputPathPrefix(PluginTask task)
     {
         return StrftimeUtil.strftime(task.getPathPrefix(), task.getRewindSeconds());
     }
 
+    protected String getFileExt(PluginTask task)
+    {
+        return task.getFileExt();
+    }
+
+    protected String getOutputSampleDir(PluginTask task)
+    {
+        String pathPrefix = StrftimeUtil.strftime(task.getPathPrefix(), task.getRewindSeconds());
+        return SamplePath.getDir(pathPrefix, task.getSequenceFormat(), task.getFileExt());
+    }
+
+    protected List<String> getWrittenPaths(List<TaskReport> reports)
+    {
+        List<String> paths = Lists.newArrayList();
+        for (TaskReport report : reports) {
+            @SuppressWarnings("unchecked")
+            List<String> written = report.get(List.class, HdfsFileOutput.WRITTEN_PATHS, ImmutableList.of());
+            paths.addAll(written);
+        }
+        return paths;
+    }
+
+    // Returns the paths of the files after the transaction is committed.
+    protected List<String> getCommittedPaths(PluginTask task, List<TaskReport> reports)
+    {
+        return getWrittenPaths(reports);
+    }
+
+    // Returns the path on each namespace where the output is spread.
+    protected List<String> resolveNamespaces(PluginTask task, String path)
+    {
+        List<String> paths = Lists.newArrayList();
+        for (String root : Namespaces.getRoots(task.getNamespaces())) {
+            paths.add(Namespaces.resolve(root, path));
+        }
+        return paths;
+    }
+
+    // Writes the manifest that lists the files spread across the namespaces, one path per line.
+    private void writeIndex(PluginTask task, List<TaskReport> reports)
+    {
+        if (!task.getIndexPath().isPresent()) {
+            return;
+        }
+        Path indexPath = new Path(StrftimeUtil.strftime(task.getIndexPath().get(), task.getRewindSeconds()));
+        StringBuilder index = new StringBuilder();
+        for (String path : getCommittedPaths(task, reports)) {
+            index.append(path).append('\n');
+        }
+        HdfsClient.build(task).writeFile(indexPath, index.toString().getBytes(StandardCharsets.UTF_8), true);
+        logger.info("Wrote the index of the output: {}", indexPath);
+    }
+
     protected boolean canOverwrite()
     {
         return false;
     }
 
+    // Whether the tasks report the paths of the written files, which the transaction reads after the tasks.
+    // The paths are not reported unless needed, to keep the task reports small on the large output.
+    protected boolean needsWrittenPaths(PluginTask task)
+    {
+        return task.getIndexPath().isPresent() || task.getWriteReplication().isPresent();
+    }
+
     public TransactionalFileOutput newOutput(PluginTask task, TaskSource taskSource, int taskIndex)
     {
-        return new HdfsFileOutput(task, getPathPrefix(task), canOverwrite(), taskIndex);
+        return new HdfsFileOutput(task, getPathPrefix(task), getOutputPathPrefix(task), getFileExt(task), canOverwrite(),
+                needsWrittenPaths(task), taskIndex);
     }
 }
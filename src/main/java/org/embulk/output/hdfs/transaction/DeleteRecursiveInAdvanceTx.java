@@ -1,22 +1,53 @@
 package org.embulk.output.hdfs.transaction;
 
+import com.google.common.collect.Lists;
 import org.apache.hadoop.fs.Path;
 import org.embulk.output.hdfs.HdfsFileOutputPlugin;
 import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.Parallel;
 import org.embulk.spi.Exec;
 import org.slf4j.Logger;
 
+import java.util.Collections;
+import java.util.List;
+
 public class DeleteRecursiveInAdvanceTx
         extends AbstractTx
 {
     private static final Logger logger = Exec.getLogger(DeleteRecursiveInAdvanceTx.class);
+    private final List<TombstonePurger> purgers = Collections.synchronizedList(Lists.<TombstonePurger>newArrayList());
+
+    @Override
+    protected void beforeRun(final HdfsFileOutputPlugin.PluginTask task)
+    {
+        final HdfsClient hdfsClient = HdfsClient.build(task);
+        // NOTE: The namespaces are deleted in parallel.
+        List<String> globPaths = resolveNamespaces(task, getPathPrefix(task) + "*");
+        Parallel.forEach("delete", globPaths, globPaths.size(), new Parallel.Action<String>()
+        {
+            @Override
+            public void run(String glob)
+            {
+                Path globPath = new Path(glob);
+                if (task.getDeleteInBackground()) {
+                    logger.info("Delete {} (Recursive) in background", globPath);
+                    TombstonePurger purger = new TombstonePurger(hdfsClient, false, task.getTombstoneTtlSeconds());
+                    purgers.add(purger);
+                    purger.moveToTombstone(globPath);
+                    purger.startPurge();
+                    return;
+                }
+                logger.info("Delete {} (Recursive) in advance", globPath);
+                hdfsClient.globAndTrash(globPath, task.getTransactionThreads());
+            }
+        });
+    }
 
     @Override
-    protected void beforeRun(HdfsFileOutputPlugin.PluginTask task)
+    protected void finallyRun(HdfsFileOutputPlugin.PluginTask task)
     {
-        HdfsClient hdfsClient = HdfsClient.build(task);
-        Path globPath = new Path(getPathPrefix(task) + "*");
-        logger.info("Delete {} (Recursive) in advance", globPath);
-        hdfsClient.globAndTrash(globPath);
+        for (TombstonePurger purger : purgers) {
+            purger.awaitPurge();
+        }
     }
 }
@@ -0,0 +1,78 @@
+package org.embulk.output.hdfs.transaction;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.fs.Path;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.Namespaces;
+import org.embulk.output.hdfs.util.Parallel;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+
+// Creates the directories of the first file of every task before the tasks start, so that the tasks do not
+// make the same parent directories at the same moment, which contends on the namespace lock of the NameNode.
+// The directories are created level by level from the top in parallel, so each mkdirs creates only one directory.
+// The directories which depend on the file index are not known in advance, and are created by the tasks as usual.
+class DirectoryPrecreator
+{
+    private static final Logger logger = Exec.getLogger(DirectoryPrecreator.class);
+
+    private DirectoryPrecreator()
+    {
+    }
+
+    static void precreate(PluginTask task, String pathPrefix, String fileExt)
+    {
+        long startNanos = System.nanoTime();
+        final HdfsClient hdfsClient = HdfsClient.build(task);
+        Set<Path> baseDirs = Sets.newHashSet();
+        SortedMap<Integer, Set<Path>> levels = Maps.newTreeMap();
+        List<String> roots = Namespaces.getRoots(task.getNamespaces());
+        for (int taskIndex = 0; taskIndex < task.getTaskCount(); taskIndex++) {
+            int sequenceTaskIndex = task.getSequenceTaskOffset() + taskIndex;
+            String root = roots.get(task.getNamespaceAssignment().select(roots.size(), sequenceTaskIndex, 0));
+            Path baseDir = new Path(Namespaces.resolve(root, pathPrefix)).getParent();
+            baseDirs.add(baseDir);
+            String sequence = String.format(task.getSequenceFormat(), sequenceTaskIndex, 0);
+            Path dir = new Path(Namespaces.resolve(root, pathPrefix) + sequence + fileExt).getParent();
+            for (Path p = dir; p != null && !p.equals(baseDir); p = p.getParent()) {
+                if (!levels.containsKey(p.depth())) {
+                    levels.put(p.depth(), Sets.<Path>newHashSet());
+                }
+                levels.get(p.depth()).add(p);
+            }
+        }
+
+        int created = 0;
+        for (Path baseDir : baseDirs) {
+            mkdirs(hdfsClient, baseDir);
+        }
+        for (Map.Entry<Integer, Set<Path>> level : levels.entrySet()) {
+            Parallel.forEach("mkdirs", level.getValue(), task.getTransactionThreads(), new Parallel.Action<Path>()
+            {
+                @Override
+                public void run(Path dir)
+                {
+                    mkdirs(hdfsClient, dir);
+                }
+            });
+            created += level.getValue().size();
+        }
+        logger.info("Created {} directories for {} tasks in advance in {} ms", created + baseDirs.size(),
+                task.getTaskCount(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
+    private static void mkdirs(HdfsClient hdfsClient, Path dir)
+    {
+        if (!hdfsClient.mkdirs(dir)) {
+            throw new IllegalStateException(String.format("Failed to make a directory: %s", dir));
+        }
+    }
+}
@@ -1,11 +1,49 @@
 package org.embulk.output.hdfs.transaction;
 
+import com.google.common.collect.Lists;
+import org.apache.hadoop.fs.Path;
+import org.embulk.config.TaskReport;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask;
+import org.embulk.output.hdfs.client.HdfsClient;
+
+import java.util.List;
+
 public class OverwriteTx
         extends AbstractTx
 {
+    private final List<SnapshotGuard> snapshots = Lists.newArrayList();
+
     @Override
     protected boolean canOverwrite()
     {
         return true;
     }
+
+    @Override
+    protected void beforeRun(PluginTask task)
+    {
+        if (task.getUseSnapshot()) {
+            HdfsClient hdfsClient = HdfsClient.build(task);
+            for (String pathPrefix : resolveNamespaces(task, getPathPrefix(task))) {
+                Path outputDir = new Path(pathPrefix).getParent();
+                snapshots.add(SnapshotGuard.take(hdfsClient, outputDir, outputDir));
+            }
+        }
+    }
+
+    @Override
+    protected void afterRun(PluginTask task, List<TaskReport> reports)
+    {
+        while (!snapshots.isEmpty()) {
+            snapshots.remove(0).release();
+        }
+    }
+
+    @Override
+    protected void onFailure(PluginTask task)
+    {
+        while (!snapshots.isEmpty()) {
+            snapshots.remove(0).restore();
+        }
+    }
 }
@@ -0,0 +1,90 @@
+package org.embulk.output.hdfs.transaction;
+
+import com.google.common.base.Optional;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.QuotaUsage;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.QuotaCheck;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+// Checks that the output fits in the quota of the nearest ancestor that has a quota before uploading,
+// so that a long run does not fail near the end.
+// The output is estimated from `expected_output_bytes`, or the stats of the previous run stored in the config diff.
+// If the output is spread across the namespaces, each namespace is expected to have an equal share of it.
+class QuotaPreflight
+{
+    private static final Logger logger = Exec.getLogger(QuotaPreflight.class);
+
+    private QuotaPreflight()
+    {
+    }
+
+    static void check(PluginTask task, Path outputDir, int namespaces)
+    {
+        if (task.getQuotaCheck() == QuotaCheck.NONE) {
+            return;
+        }
+        HdfsClient hdfsClient = HdfsClient.build(task);
+        Optional<Path> quotaRoot = hdfsClient.findQuotaRoot(outputDir);
+        if (!quotaRoot.isPresent()) {
+            logger.info("Skip the quota check because no quota is set on {} and its ancestors.", outputDir);
+            return;
+        }
+        QuotaUsage usage = hdfsClient.getQuotaUsage(quotaRoot.get());
+        logger.info("Quota of {}: namespace: {}/{}, space: {}/{} bytes", quotaRoot.get(),
+                usage.getFileAndDirectoryCount(), usage.getQuota(), usage.getSpaceConsumed(), usage.getSpaceQuota());
+
+        Optional<Long> bytes = task.getExpectedOutputBytes().or(task.getLastOutputBytes());
+        if (bytes.isPresent() && usage.getSpaceQuota() >= 0) {
+            short replication = hdfsClient.getDefaultReplication(outputDir);
+            long share = divideRoundingUp(bytes.get(), namespaces);
+            long required = share * replication;
+            long remaining = usage.getSpaceQuota() - usage.getSpaceConsumed();
+            if (required > remaining) {
+                onShortage(task, String.format(
+                        "The output (%d bytes x replication %d = %d bytes) does not fit in the space quota of %s (remaining: %d bytes)",
+                        share, replication, required, quotaRoot.get(), remaining));
+            }
+        }
+        Optional<Long> files = task.getLastOutputFiles();
+        if (files.isPresent() && usage.getQuota() >= 0) {
+            long share = divideRoundingUp(files.get(), namespaces);
+            long remaining = usage.getQuota() - usage.getFileAndDirectoryCount();
+            if (share > remaining) {
+                onShortage(task, String.format(
+                        "The output (%d files) does not fit in the namespace quota of %s (remaining: %d)",
+                        share, quotaRoot.get(), remaining));
+            }
+        }
+    }
+
+    // Checks the workspace too if it is under another quota root than the output directory, e.g. in replace mode,
+    // because the files are written under the quota of the workspace before they are moved to the output directory.
+    static void checkWorkspace(PluginTask task, Path workspaceDir, Path outputDir, int namespaces)
+    {
+        if (task.getQuotaCheck() == QuotaCheck.NONE) {
+            return;
+        }
+        HdfsClient hdfsClient = HdfsClient.build(task);
+        Optional<Path> quotaRoot = hdfsClient.findQuotaRoot(workspaceDir);
+        if (quotaRoot.isPresent() && !quotaRoot.equals(hdfsClient.findQuotaRoot(outputDir))) {
+            check(task, workspaceDir, namespaces);
+        }
+    }
+
+    private static long divideRoundingUp(long value, int divisor)
+    {
+        return (value + divisor - 1) / divisor;
+    }
+
+    private static void onShortage(PluginTask task, String message)
+    {
+        if (task.getQuotaCheck() == QuotaCheck.ABORT) {
+            throw new DataException(message);
+        }
+        logger.warn(message);
+    }
+}
@@ -0,0 +1,114 @@
+package org.embulk.output.hdfs.transaction;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.RunId;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Writes files to the target directory directly with the unique run id, then publishes
+// the manifest and deletes the files of the previous runs. This does not rename anything,
+// because rename is not O(1) on object stores (s3a, abfs, gcs, ...).
+public class ReplaceDirectTx
+        extends AbstractTx
+{
+    private static final Logger logger = Exec.getLogger(ReplaceDirectTx.class);
+    public static final String MANIFEST_NAME = "_MANIFEST";
+    private static final Pattern FORMAT_SPECIFIER = Pattern.compile("%(%|[-#+ 0,(]*\\d*[a-zA-Z])");
+
+    @Override
+    protected String getFileExt(PluginTask task)
+    {
+        return String.format("%s.%s", task.getRunId(), task.getFileExt());
+    }
+
+    @Override
+    protected boolean needsWrittenPaths(PluginTask task)
+    {
+        return true;
+    }
+
+    @Override
+    protected void beforeRun(PluginTask task)
+    {
+        if (task.getSequenceFormat().contains("/")) {
+            throw new ConfigException("Must not include `/` in `sequence_format` if mode is replace_direct.");
+        }
+        String runId = RunId.build();
+        logger.info("Use as a run id: {}", runId);
+        task.setRunId(runId);
+    }
+
+    @Override
+    protected void afterRun(PluginTask task, List<TaskReport> reports)
+    {
+        HdfsClient hdfsClient = HdfsClient.build(task);
+        Path outputDir = new Path(getOutputSampleDir(task));
+
+        Set<String> names = Sets.newHashSet();
+        for (String path : getWrittenPaths(reports)) {
+            names.add(new Path(path).getName());
+        }
+        List<String> sortedNames = Lists.newArrayList(names);
+        Collections.sort(sortedNames);
+
+        Path manifest = new Path(outputDir, MANIFEST_NAME);
+        StringBuilder content = new StringBuilder(String.format("# run_id: %s\n", task.getRunId()));
+        for (String name : sortedNames) {
+            content.append(name).append("\n");
+        }
+        hdfsClient.mkdirs(outputDir);
+        hdfsClient.writeFile(manifest, content.toString().getBytes(StandardCharsets.UTF_8), true);
+        logger.info("Commit: {} ({} files, run id: {})", manifest, sortedNames.size(), task.getRunId());
+
+        // Delete only the files of the previous runs of this output, which are named as
+        // `<path_prefix><sequence><run id>.<file_ext>` with the extension of the block compression or the container,
+        // and keep the other files in the directory.
+        // NOTE: They are deleted without the trash, because moving to the trash is a rename, which copies the objects.
+        Pattern previousFile = getPreviousFilePattern(task);
+        for (FileStatus status : hdfsClient.listStatus(outputDir)) {
+            String name = status.getPath().getName();
+            Matcher matcher = previousFile.matcher(name);
+            if (names.contains(name) || !matcher.matches() || matcher.group(1).equals(task.getRunId())) {
+                continue;
+            }
+            // NOTE: The MapFile is a directory of the data and the index.
+            logger.debug("Delete: {}", status.getPath());
+            if (!hdfsClient.delete(status.getPath(), status.isDirectory())) {
+                throw new IllegalStateException(String.format("Failed to delete: %s", status.getPath()));
+            }
+        }
+    }
+
+    // Builds the pattern from the pieces of the names made by HdfsFileOutput: the name part of the path prefix,
+    // the sequence format, the run id and the file extension.
+    private Pattern getPreviousFilePattern(PluginTask task)
+    {
+        String pathPrefix = getPathPrefix(task);
+        String prefixName = pathPrefix.substring(pathPrefix.lastIndexOf('/') + 1);
+        StringBuilder sequence = new StringBuilder();
+        Matcher specifier = FORMAT_SPECIFIER.matcher(task.getSequenceFormat());
+        int last = 0;
+        while (specifier.find()) {
+            sequence.append(Pattern.quote(task.getSequenceFormat().substring(last, specifier.start())));
+            sequence.append(specifier.group().equals("%%") ? "%" : "[0-9a-fA-F]+");
+            last = specifier.end();
+        }
+        sequence.append(Pattern.quote(task.getSequenceFormat().substring(last)));
+        return Pattern.compile(String.format("%s%s(%s)%s(\\..*)?",
+                Pattern.quote(prefixName), sequence, RunId.REGEX, Pattern.quote("." + task.getFileExt())));
+    }
+}
@@ -1,23 +1,33 @@
 package org.embulk.output.hdfs.transaction;
 
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.hadoop.fs.Path;
 import org.embulk.config.ConfigException;
 import org.embulk.config.TaskReport;
 import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask;
 import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.Namespaces;
+import org.embulk.output.hdfs.util.Parallel;
 import org.embulk.output.hdfs.util.SafeWorkspaceName;
-import org.embulk.output.hdfs.util.SamplePath;
-import org.embulk.output.hdfs.util.StrftimeUtil;
 import org.embulk.spi.Exec;
 import org.slf4j.Logger;
 
 import java.nio.file.Paths;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class ReplaceTx
         extends AbstractTx
 {
     private static final Logger logger = Exec.getLogger(ReplaceTx.class);
 
+    private final List<WorkspaceSweeper> sweepers = Lists.newArrayList();
+    private final List<SnapshotGuard> snapshots = Lists.newArrayList();
+
     @Override
     protected String getPathPrefix(PluginTask task)
     {
@@ -28,35 +38,185 @@ public class ReplaceTx
     protected void beforeRun(PluginTask task)
     {
         HdfsClient hdfsClient = HdfsClient.build(task);
-        if (task.getSequenceFormat().contains("/")) {
-            throw new ConfigException("Must not include `/` in `sequence_format` if atomic is true.");
-        }
 
         String safeWorkspace = SafeWorkspaceName.build(task.getWorkspace());
         logger.info("Use as a workspace: {}", safeWorkspace);
 
-        String safeWsWithOutput = Paths.get(safeWorkspace, getOutputSampleDir(task)).toString();
+        // NOTE: If `sequence_format` does not include `/`, the output directory is always replaced
+        //       even if no file is written. Otherwise, only the directories written by tasks are replaced.
+        String safeWsWithOutput = isPartitioned(task)
+                ? safeWorkspace
+                : Paths.get(safeWorkspace, getOutputSampleDir(task)).toString();
         logger.debug("The actual workspace must be with output dirs: {}", safeWsWithOutput);
-        if (!hdfsClient.mkdirs(safeWsWithOutput)) {
-            throw new ConfigException(String.format("Failed to make a directory: %s", safeWsWithOutput));
+        // NOTE: Each namespace has its own workspace, because rename does not work across namespaces.
+        for (String path : resolveNamespaces(task, safeWsWithOutput)) {
+            if (!hdfsClient.mkdirs(path)) {
+                throw new ConfigException(String.format("Failed to make a directory: %s", path));
+            }
         }
         task.setSafeWorkspace(safeWorkspace);
+
+        // NOTE: The output directories are checked by the transaction.
+        List<String> workspaceDirs = resolveNamespaces(task, safeWsWithOutput);
+        List<String> outputDirs = resolveNamespaces(task, getOutputSampleDir(task));
+        for (int i = 0; i < workspaceDirs.size(); i++) {
+            QuotaPreflight.checkWorkspace(task, new Path(workspaceDirs.get(i)), new Path(outputDirs.get(i)),
+                    workspaceDirs.size());
+        }
+
+        if (task.getUseSnapshot()) {
+            // NOTE: The snapshottable directory which has snapshots cannot be deleted, so it must be an ancestor of the output directory.
+            for (String root : Namespaces.getRoots(task.getNamespaces())) {
+                Path outputDir = new Path(Namespaces.resolve(root, getOutputSampleDir(task)));
+                Path scope = new Path(Namespaces.resolve(root, super.getPathPrefix(task))).getParent();
+                snapshots.add(SnapshotGuard.take(hdfsClient, outputDir.getParent() != null ? outputDir.getParent() : outputDir, scope));
+            }
+        }
+
+        if (task.getWorkspaceTtlSeconds().isPresent()) {
+            for (String root : Namespaces.getRoots(task.getNamespaces())) {
+                WorkspaceSweeper sweeper = new WorkspaceSweeper(hdfsClient,
+                        Namespaces.resolve(root, task.getWorkspace()), Namespaces.resolve(root, safeWorkspace),
+                        task.getWorkspaceTtlSeconds().get(), task.getTransactionThreads());
+                sweeper.start();
+                sweepers.add(sweeper);
+            }
+        }
     }
 
     @Override
     protected void afterRun(PluginTask task, List<TaskReport> reports)
     {
+        final HdfsClient hdfsClient = HdfsClient.build(task);
+        final String safeWorkspace = task.getSafeWorkspace();
+        final boolean useSnapshot = task.getUseSnapshot();
+        List<String> roots = Namespaces.getRoots(task.getNamespaces());
+
+        Map<String, Set<String>> outputDirs = Maps.newLinkedHashMap();
+        for (String root : roots) {
+            outputDirs.put(root, Sets.<String>newHashSet());
+            if (!isPartitioned(task)) {
+                outputDirs.get(root).add(getOutputSampleDir(task));
+            }
+        }
+        for (String path : getWrittenPaths(reports)) {
+            String root = getNamespace(roots, safeWorkspace, path);
+            String relative = path.substring(getWorkspacePrefix(root, safeWorkspace).length() - 1);
+            outputDirs.get(root).add(new Path(relative).getParent().toUri().getPath());
+        }
+
+        List<Map.Entry<String, String>> replacedDirs = Lists.newArrayList();
+        for (Map.Entry<String, Set<String>> entry : outputDirs.entrySet()) {
+            List<String> sortedDirs = Lists.newArrayList(entry.getValue());
+            Collections.sort(sortedDirs);
+            String lastReplaced = null;
+            for (String dir : sortedDirs) {
+                // Skip the directory whose ancestor is replaced.
+                if (lastReplaced == null || !dir.startsWith(lastReplaced + "/")) {
+                    replacedDirs.add(Maps.immutableEntry(entry.getKey(), dir));
+                    lastReplaced = dir;
+                }
+            }
+        }
+
+        Parallel.forEach("replace", replacedDirs, task.getTransactionThreads(), new Parallel.Action<Map.Entry<String, String>>()
+        {
+            @Override
+            public void run(Map.Entry<String, String> namespaceAndDir)
+            {
+                String root = namespaceAndDir.getKey();
+                String outputDir = Namespaces.resolve(root, namespaceAndDir.getValue());
+                String safeWsWithOutput = Namespaces.resolve(root, Paths.get(safeWorkspace, namespaceAndDir.getValue()).toString());
+                Path parent = new Path(outputDir).getParent();
+                if (parent != null && !hdfsClient.mkdirs(parent)) {
+                    throw new IllegalStateException(String.format("Failed to make a directory: %s", parent));
+                }
+                if (useSnapshot) {
+                    // NOTE: The old data is kept in the snapshot, so delete it without the trash.
+                    hdfsClient.delete(new Path(outputDir), true);
+                }
+                hdfsClient.renameDirectory(safeWsWithOutput, outputDir, !useSnapshot);
+                logger.info("Store: {} >>> {}", safeWsWithOutput, outputDir);
+            }
+        });
+
+        while (!snapshots.isEmpty()) {
+            snapshots.remove(0).release();
+        }
+    }
+
+    @Override
+    protected void onFailure(PluginTask task)
+    {
+        while (!snapshots.isEmpty()) {
+            snapshots.remove(0).restore();
+        }
+    }
+
+    @Override
+    protected boolean needsWrittenPaths(PluginTask task)
+    {
+        // NOTE: The partitioned output directories are known only by the written paths.
+        return isPartitioned(task) || super.needsWrittenPaths(task);
+    }
+
+    @Override
+    protected List<String> getCommittedPaths(PluginTask task, List<TaskReport> reports)
+    {
+        List<String> roots = Namespaces.getRoots(task.getNamespaces());
+        List<String> paths = Lists.newArrayList();
+        for (String path : getWrittenPaths(reports)) {
+            String root = getNamespace(roots, task.getSafeWorkspace(), path);
+            String relative = path.substring(getWorkspacePrefix(root, task.getSafeWorkspace()).length() - 1);
+            paths.add(new Path(Namespaces.resolve(root, relative)).toString());
+        }
+        return paths;
+    }
+
+    @Override
+    protected void finallyRun(PluginTask task)
+    {
+        for (WorkspaceSweeper sweeper : sweepers) {
+            sweeper.await();
+        }
+    }
+
+    @Override
+    public void cleanup(PluginTask task, List<TaskReport> successTaskReports)
+    {
+        // NOTE: The output directories are moved out by the replace, so only the empty directories are left.
+        String safeWorkspace = task.getSafeWorkspace();
+        if (safeWorkspace.isEmpty()) {
+            return;
+        }
         HdfsClient hdfsClient = HdfsClient.build(task);
-        String outputDir = getOutputSampleDir(task);
-        String safeWsWithOutput = Paths.get(task.getSafeWorkspace(), getOutputSampleDir(task)).toString();
+        for (String path : resolveNamespaces(task, safeWorkspace)) {
+            if (!hdfsClient.delete(new Path(path), true)) {
+                logger.warn("Failed to delete the workspace: {}", path);
+                continue;
+            }
+            logger.info("Deleted the workspace: {}", path);
+        }
+    }
 
-        hdfsClient.renameDirectory(safeWsWithOutput, outputDir, true);
-        logger.info("Store: {} >>> {}", safeWsWithOutput, outputDir);
+    private boolean isPartitioned(PluginTask task)
+    {
+        return task.getSequenceFormat().contains("/");
     }
 
-    private String getOutputSampleDir(PluginTask task)
+    // NOTE: The written paths are normalized by Path, e.g. `file:///` becomes `file:/`, so compare them via Path.
+    private String getWorkspacePrefix(String root, String safeWorkspace)
     {
-        String pathPrefix = StrftimeUtil.strftime(task.getPathPrefix(), task.getRewindSeconds());
-        return SamplePath.getDir(pathPrefix, task.getSequenceFormat(), task.getFileExt());
+        return new Path(Namespaces.resolve(root, safeWorkspace)).toString() + "/";
+    }
+
+    private String getNamespace(List<String> roots, String safeWorkspace, String writtenPath)
+    {
+        for (String root : roots) {
+            if (writtenPath.startsWith(getWorkspacePrefix(root, safeWorkspace))) {
+                return root;
+            }
+        }
+        throw new IllegalStateException(String.format("%s is not written in the workspace: %s", writtenPath, safeWorkspace));
     }
 }
@@ -0,0 +1,191 @@
+package org.embulk.output.hdfs.transaction;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.embulk.config.ConfigException;
+import org.embulk.config.TaskReport;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.RunId;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// Writes files to `<dir>/_v=<run id>`, then swaps `<dir>/_CURRENT` to point the version.
+// Readers never see the gap, and the commit is constant-time.
+public class ReplaceVersionedTx
+        extends AbstractTx
+{
+    private static final Logger logger = Exec.getLogger(ReplaceVersionedTx.class);
+    public static final String VERSION_PREFIX = "_v=";
+    public static final String POINTER_NAME = "_CURRENT";
+    // Marks the version published to the pointer. The versions without it are left by the failed runs.
+    public static final String PUBLISHED_NAME = "_PUBLISHED";
+    private static final long GC_WAIT_SECONDS = 5;
+
+    private boolean published = false;
+    private Future<?> gc = null;
+
+    @Override
+    protected String getPathPrefix(PluginTask task)
+    {
+        // NOTE: The name part of the path prefix is kept as it is, e.g. empty if the path prefix ends with `/`,
+        // because `sequence_format` does not include `/` in this mode.
+        String pathPrefix = super.getPathPrefix(task);
+        String prefixName = pathPrefix.substring(pathPrefix.lastIndexOf('/') + 1);
+        return getVersionDir(task).toString() + Path.SEPARATOR + prefixName;
+    }
+
+    @Override
+    protected void beforeRun(PluginTask task)
+    {
+        if (task.getSequenceFormat().contains("/")) {
+            throw new ConfigException("Must not include `/` in `sequence_format` if mode is replace_versioned.");
+        }
+        if (task.getVersionedRetention() < 1) {
+            throw new ConfigException("`versioned_retention` must be 1 or more.");
+        }
+        String runId = RunId.build();
+        logger.info("Use as a run id: {}", runId);
+        task.setRunId(runId);
+
+        HdfsClient hdfsClient = HdfsClient.build(task);
+        Path versionDir = getVersionDir(task);
+        if (!hdfsClient.mkdirs(versionDir)) {
+            throw new ConfigException(String.format("Failed to make a directory: %s", versionDir));
+        }
+    }
+
+    @Override
+    protected void afterRun(PluginTask task, List<TaskReport> reports)
+    {
+        HdfsClient hdfsClient = HdfsClient.build(task);
+        Path outputDir = new Path(getOutputSampleDir(task));
+        Path versionDir = getVersionDir(task);
+        Path pointer = new Path(outputDir, POINTER_NAME);
+        Path tmpPointer = new Path(outputDir, String.format(".%s.%s", POINTER_NAME, task.getRunId()));
+
+        hdfsClient.writeFile(new Path(versionDir, PUBLISHED_NAME), new byte[0], true);
+        if (hdfsClient.supportsSymlinks()) {
+            hdfsClient.createSymlink(new Path(versionDir.getName()), tmpPointer);
+        }
+        else {
+            byte[] content = String.format("%s\n", versionDir.getName()).getBytes(StandardCharsets.UTF_8);
+            hdfsClient.writeFile(tmpPointer, content, false);
+        }
+        hdfsClient.renameOverwrite(tmpPointer, pointer);
+        published = true;
+        logger.info("Store: {} >>> {}", versionDir, pointer);
+
+        collectGarbageAsync(task, outputDir);
+    }
+
+    private Path getVersionDir(PluginTask task)
+    {
+        return new Path(getOutputSampleDir(task), VERSION_PREFIX + task.getRunId());
+    }
+
+    @Override
+    protected void onFailure(PluginTask task)
+    {
+        // NOTE: The version is kept if the failure is after the pointer is swapped to it.
+        if (published || task.getRunId().isEmpty()) {
+            return;
+        }
+        Path versionDir = getVersionDir(task);
+        logger.info("Delete the unpublished version: {}", versionDir);
+        if (!HdfsClient.build(task).delete(versionDir, true)) {
+            logger.warn("Failed to delete the unpublished version: {}", versionDir);
+        }
+    }
+
+    @Override
+    protected void finallyRun(PluginTask task)
+    {
+        if (gc == null) {
+            return;
+        }
+        // NOTE: The old versions are deleted in background, so this waits only for a short time not to delay the job.
+        // The versions left by the end of the JVM are deleted by the next run.
+        try {
+            gc.get(GC_WAIT_SECONDS, TimeUnit.SECONDS);
+        }
+        catch (TimeoutException e) {
+            logger.info("Deleting the old versions in background. The left versions will be deleted by the next run.");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while deleting the old versions. They will be deleted by the next run.");
+        }
+        catch (ExecutionException e) {
+            logger.warn("Failed to delete the old versions. They will be deleted by the next run.", e.getCause());
+        }
+    }
+
+    private void collectGarbageAsync(PluginTask task, Path outputDir)
+    {
+        final String versionName = getVersionDir(task).getName();
+        final HdfsClient hdfsClient = HdfsClient.build(task);
+        List<Path> published = Lists.newArrayList();
+        final List<Path> expired = Lists.newArrayList();
+        for (FileStatus status : hdfsClient.glob(new Path(outputDir, VERSION_PREFIX + "*"))) {
+            String name = status.getPath().getName();
+            if (!status.isDirectory() || name.equals(versionName)) {
+                continue;
+            }
+            if (hdfsClient.getFileStatus(new Path(status.getPath(), PUBLISHED_NAME)).isPresent()) {
+                published.add(status.getPath());
+            }
+            else if (name.compareTo(versionName) < 0) {
+                // NOTE: The unpublished versions of the later runs may be being written by the concurrent runs.
+                expired.add(status.getPath());
+            }
+        }
+        // Run ids are sorted by the start time of the runs. The current version is always retained.
+        Collections.sort(published, new Comparator<Path>()
+        {
+            @Override
+            public int compare(Path a, Path b)
+            {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        expired.addAll(published.subList(0, Math.max(0, published.size() - (task.getVersionedRetention() - 1))));
+        if (expired.isEmpty()) {
+            return;
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("embulk-output-hdfs-gc-%d")
+                .setDaemon(true)
+                .build());
+        gc = executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (Path path : expired) {
+                    logger.info("Move To Trash: {}", path);
+                    // NOTE: trash returns false if the trash is disabled.
+                    if (!hdfsClient.trash(path) && !hdfsClient.delete(path, true)) {
+                        throw new IllegalStateException(String.format("Failed to delete an old version: %s", path));
+                    }
+                }
+                logger.info("Deleted {} old versions", expired.size());
+            }
+        });
+        executor.shutdown();
+    }
+}
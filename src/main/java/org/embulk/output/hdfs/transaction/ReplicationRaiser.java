@@ -0,0 +1,104 @@
+package org.embulk.output.hdfs.transaction;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.MapFile;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.Container;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.Parallel;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Raises the replication of the committed files from `write_replication` to the default replication.
+// setReplication only updates the metadata, and the NameNode replicates the blocks in the background.
+// If `wait_for_replication`, waits until every block of the files has the replicas, to return the durable output.
+class ReplicationRaiser
+{
+    private static final Logger logger = Exec.getLogger(ReplicationRaiser.class);
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    private ReplicationRaiser()
+    {
+    }
+
+    static void raise(PluginTask task, List<String> paths)
+    {
+        final HdfsClient hdfsClient = HdfsClient.build(task);
+        short writeReplication = task.getWriteReplication().get().shortValue();
+        long startNanos = System.nanoTime();
+        // NOTE: The default replication may differ by the namespace.
+        Map<Path, Short> replications = Maps.newLinkedHashMap();
+        for (String path : paths) {
+            for (Path p : getFiles(task, new Path(path))) {
+                short replication = hdfsClient.getDefaultReplication(p);
+                if (replication > writeReplication) {
+                    replications.put(p, replication);
+                }
+            }
+        }
+        Parallel.forEach("set_replication", replications.entrySet(), task.getTransactionThreads(),
+                new Parallel.Action<Map.Entry<Path, Short>>()
+                {
+                    @Override
+                    public void run(Map.Entry<Path, Short> replication)
+                    {
+                        if (!hdfsClient.setReplication(replication.getKey(), replication.getValue())) {
+                            throw new IllegalStateException(String.format(
+                                    "Failed to set the replication of %s", replication.getKey()));
+                        }
+                    }
+                });
+        logger.info("Raised the replication of {} files from {} in {} ms", replications.size(), writeReplication,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+
+        if (task.getWaitForReplication()) {
+            waitForReplication(task, hdfsClient, replications);
+        }
+    }
+
+    // The MapFile is a directory of the data and the index, and the replication is set to the files only.
+    private static List<Path> getFiles(PluginTask task, Path path)
+    {
+        if (task.getContainer() == Container.MAP_FILE) {
+            return Lists.newArrayList(new Path(path, MapFile.DATA_FILE_NAME), new Path(path, MapFile.INDEX_FILE_NAME));
+        }
+        return Lists.newArrayList(path);
+    }
+
+    private static void waitForReplication(PluginTask task, HdfsClient hdfsClient, Map<Path, Short> replications)
+    {
+        long startNanos = System.nanoTime();
+        long timeoutNanos = TimeUnit.SECONDS.toNanos(task.getReplicationWaitTimeoutSeconds());
+        // NOTE: The files replicated once are not checked again.
+        List<Map.Entry<Path, Short>> waiting = Lists.newLinkedList(replications.entrySet());
+        while (true) {
+            while (!waiting.isEmpty() && hdfsClient.isReplicated(waiting.get(0).getKey(), waiting.get(0).getValue())) {
+                waiting.remove(0);
+            }
+            if (waiting.isEmpty()) {
+                break;
+            }
+            if (System.nanoTime() - startNanos > timeoutNanos) {
+                throw new IllegalStateException(String.format(
+                        "Timed out waiting for the replication of %d files in %d seconds: %s",
+                        waiting.size(), task.getReplicationWaitTimeoutSeconds(), waiting.get(0).getKey()));
+            }
+            logger.info("Waiting for the replication of {} files", waiting.size());
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        logger.info("Replicated {} files in {} ms", replications.size(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+}
@@ -0,0 +1,135 @@
+package org.embulk.output.hdfs.transaction;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSUtilClient;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.protocol.SnapshotDiffReport;
+import org.apache.hadoop.hdfs.protocol.SnapshotDiffReport.DiffReportEntry;
+import org.apache.hadoop.hdfs.protocol.SnapshotDiffReport.DiffType;
+import org.embulk.config.ConfigException;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.RunId;
+import org.embulk.output.hdfs.util.SafeWorkspaceName;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.List;
+
+// Takes a snapshot of the snapshottable ancestor of the output directory before the load,
+// so that the old data is kept by a constant-time metadata operation instead of moving it to the trash.
+// If the transaction fails, the entries changed since the snapshot are restored by the snapshot diff.
+// Only the entries in the scope (the directory of the output) are restored, to keep the changes by the others.
+// NOTE: HDFS cannot roll back a directory to a snapshot, so the changed entries are copied back from the snapshot.
+class SnapshotGuard
+{
+    private static final Logger logger = Exec.getLogger(SnapshotGuard.class);
+
+    static SnapshotGuard take(HdfsClient hdfsClient, Path searchFrom, Path scope)
+    {
+        Optional<Path> root = hdfsClient.findSnapshottableRoot(searchFrom);
+        if (!root.isPresent()) {
+            throw new ConfigException(String.format(
+                    "`use_snapshot` option requires a snapshottable directory, but %s and its ancestors are not snapshottable.",
+                    searchFrom));
+        }
+        String name = String.format("%s_%s", SafeWorkspaceName.PREFIX, RunId.build());
+        Path snapshot = hdfsClient.createSnapshot(root.get(), name);
+        logger.info("Took the snapshot: {}", snapshot);
+        return new SnapshotGuard(hdfsClient, root.get(), name, getRelativePath(root.get(), scope));
+    }
+
+    private static String getRelativePath(Path root, Path path)
+    {
+        String rootPath = Path.getPathWithoutSchemeAndAuthority(root).toString();
+        String relative = Path.getPathWithoutSchemeAndAuthority(path).toString().substring(rootPath.length());
+        return relative.startsWith("/") ? relative.substring(1) : relative;
+    }
+
+    private final HdfsClient hdfsClient;
+    private final Path root;
+    private final String name;
+    private final String scope;
+
+    private SnapshotGuard(HdfsClient hdfsClient, Path root, String name, String scope)
+    {
+        this.hdfsClient = hdfsClient;
+        this.root = root;
+        this.name = name;
+        this.scope = scope;
+    }
+
+    void release()
+    {
+        hdfsClient.deleteSnapshot(root, name);
+        logger.info("Deleted the snapshot {} of {}", name, root);
+    }
+
+    void restore()
+    {
+        SnapshotDiffReport report = hdfsClient.getSnapshotDiffReport(root, name);
+        List<String> created = Lists.newArrayList();
+        List<String> restored = Lists.newArrayList();
+        for (DiffReportEntry entry : report.getDiffList()) {
+            String source = DFSUtilClient.bytes2String(entry.getSourcePath());
+            if (entry.getType() != DiffType.RENAME && !isInScope(source)) {
+                continue;
+            }
+            switch (entry.getType()) {
+                case CREATE:
+                    created.add(source);
+                    break;
+                case DELETE:
+                    restored.add(source);
+                    break;
+                case MODIFY:
+                    // NOTE: The modified directories are restored by the entries of their children.
+                    Optional<FileStatus> status = hdfsClient.getFileStatus(getSnapshotPath(source));
+                    if (status.isPresent() && status.get().isFile()) {
+                        restored.add(source);
+                    }
+                    break;
+                case RENAME:
+                    String target = DFSUtilClient.bytes2String(entry.getTargetPath());
+                    if (isInScope(target)) {
+                        created.add(target);
+                    }
+                    if (isInScope(source)) {
+                        restored.add(source);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException(String.format("Unknown diff type: %s", entry.getType()));
+            }
+        }
+        logger.info("Restore {} from the snapshot {}: delete {} entries, and restore {} entries",
+                root, name, created.size(), restored.size());
+        for (String path : created) {
+            logger.debug("Delete: {}", getCurrentPath(path));
+            hdfsClient.delete(getCurrentPath(path), true);
+        }
+        for (String path : restored) {
+            logger.debug("Restore: {} >>> {}", getSnapshotPath(path), getCurrentPath(path));
+            hdfsClient.copy(getSnapshotPath(path), getCurrentPath(path));
+        }
+        release();
+    }
+
+    private boolean isInScope(String relative)
+    {
+        return scope.isEmpty() || relative.equals(scope) || relative.startsWith(scope + "/");
+    }
+
+    private Path getCurrentPath(String relative)
+    {
+        return relative.isEmpty() ? root : new Path(root, relative);
+    }
+
+    private Path getSnapshotPath(String relative)
+    {
+        Path snapshot = new Path(new Path(root, HdfsConstants.DOT_SNAPSHOT_DIR), name);
+        return relative.isEmpty() ? snapshot : new Path(snapshot, relative);
+    }
+}
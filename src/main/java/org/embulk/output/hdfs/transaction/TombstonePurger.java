@@ -0,0 +1,135 @@
+package org.embulk.output.hdfs.transaction;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.RunId;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Moves the entries to delete into hidden tombstone directories by one rename per entry,
+// then purges the tombstones in background while tasks upload files.
+// If purging fails, the tombstones are left and purged by the next run after `tombstone_ttl_seconds`.
+// The younger tombstones are left because they may be being purged by the concurrent runs.
+class TombstonePurger
+{
+    private static final Logger logger = Exec.getLogger(TombstonePurger.class);
+    static final String TOMBSTONE_PREFIX = ".embulk-output-hdfs-tombstone_";
+
+    private final HdfsClient hdfsClient;
+    private final boolean filesOnly;
+    private final long tombstoneTtlMillis;
+    private final String runId = RunId.build();
+    private final Set<Path> tombstones = Sets.newTreeSet();
+    private Future<Void> purge = null;
+
+    TombstonePurger(HdfsClient hdfsClient, boolean filesOnly, long tombstoneTtlSeconds)
+    {
+        this.hdfsClient = hdfsClient;
+        this.filesOnly = filesOnly;
+        this.tombstoneTtlMillis = TimeUnit.SECONDS.toMillis(tombstoneTtlSeconds);
+    }
+
+    void moveToTombstone(Path globPath)
+    {
+        // Purge the expired tombstones left by the previous runs too.
+        long now = System.currentTimeMillis();
+        for (FileStatus status : Lists.newArrayList(hdfsClient.globIterator(new Path(globPath.getParent(), TOMBSTONE_PREFIX + "*")))) {
+            Optional<Long> createdAt = RunId.getCreatedAtMillis(status.getPath().getName().substring(TOMBSTONE_PREFIX.length()));
+            if (!createdAt.isPresent() || now - createdAt.get() < tombstoneTtlMillis) {
+                logger.debug("Skip the tombstone which is not expired: {}", status.getPath());
+                continue;
+            }
+            logger.info("Find the tombstone left by the previous run: {}", status.getPath());
+            tombstones.add(status.getPath());
+        }
+        Iterator<FileStatus> statuses = hdfsClient.globIterator(globPath);
+        while (statuses.hasNext()) {
+            FileStatus status = statuses.next();
+            Path path = status.getPath();
+            if (path.getName().startsWith(TOMBSTONE_PREFIX)) {
+                continue;
+            }
+            if (filesOnly && status.isDirectory()) {
+                logger.debug("Skip {} because {} is a directory.", path, path);
+                continue;
+            }
+            Path tombstone = getTombstone(path.getParent());
+            logger.debug("Move To Tombstone: {} >>> {}", path, tombstone);
+            if (!hdfsClient.rename(path, new Path(tombstone, path.getName()))) {
+                throw new RuntimeException(String.format("Failed to Move To Tombstone: %s", path));
+            }
+        }
+    }
+
+    void startPurge()
+    {
+        if (tombstones.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("embulk-output-hdfs-purge-%d")
+                .setDaemon(true)
+                .build());
+        purge = executor.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+            {
+                for (Path tombstone : tombstones) {
+                    logger.info("Move To Trash: {}", tombstone);
+                    // NOTE: trash returns false if the trash is disabled.
+                    if (!hdfsClient.trash(tombstone) && !hdfsClient.delete(tombstone, true)) {
+                        throw new RuntimeException(String.format("Failed to purge the tombstone: %s", tombstone));
+                    }
+                }
+                return null;
+            }
+        });
+        executor.shutdown();
+    }
+
+    void awaitPurge()
+    {
+        if (purge == null) {
+            return;
+        }
+        try {
+            purge.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while purging the tombstones. They will be purged by the next run: {}",
+                    tombstones);
+        }
+        catch (ExecutionException e) {
+            logger.warn(String.format("Failed to purge the tombstones. They will be purged by the next run: %s",
+                    tombstones), e.getCause());
+        }
+    }
+
+    private Path getTombstone(Path parent)
+    {
+        Path tombstone = new Path(parent, TOMBSTONE_PREFIX + runId);
+        if (!tombstones.contains(tombstone)) {
+            if (!hdfsClient.mkdirs(tombstone)) {
+                throw new RuntimeException(String.format("Failed to make a directory: %s", tombstone));
+            }
+            tombstones.add(tombstone);
+        }
+        return tombstone;
+    }
+}
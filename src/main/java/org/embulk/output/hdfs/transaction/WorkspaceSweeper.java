@@ -0,0 +1,119 @@
+package org.embulk.output.hdfs.transaction;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.Parallel;
+import org.embulk.output.hdfs.util.SafeWorkspaceName;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Deletes the workspaces older than the TTL, which are left by the crashed runs, in background while uploading.
+// The age is read from the workspace name, or from the modification time if the name is built by the older versions.
+// The workspaces modified within the TTL are kept even if the name is older, because a long-running job may still use them.
+// NOTE: The TTL must still be longer than the longest run, because writing the files in the subdirectories
+// does not update the modification time of the workspace itself.
+// NOTE: The workspaces are deleted without the trash, because moving them to the trash does not release the space.
+class WorkspaceSweeper
+{
+    private static final Logger logger = Exec.getLogger(WorkspaceSweeper.class);
+
+    private final HdfsClient hdfsClient;
+    private final Path workspace;
+    private final String currentName;
+    private final long ttlMillis;
+    private final int threads;
+    private Future<Long> sweep = null;
+
+    WorkspaceSweeper(HdfsClient hdfsClient, String workspace, String currentWorkspace, long ttlSeconds, int threads)
+    {
+        this.hdfsClient = hdfsClient;
+        this.workspace = new Path(workspace);
+        this.currentName = new Path(currentWorkspace).getName();
+        this.ttlMillis = TimeUnit.SECONDS.toMillis(ttlSeconds);
+        this.threads = threads;
+    }
+
+    void start()
+    {
+        final long now = System.currentTimeMillis();
+        ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("embulk-output-hdfs-sweep-%d")
+                .setDaemon(true)
+                .build());
+        sweep = executor.submit(new Callable<Long>()
+        {
+            @Override
+            public Long call()
+            {
+                final AtomicLong deleted = new AtomicLong(0);
+                Iterator<FileStatus> expired = Iterators.filter(
+                        hdfsClient.globIterator(new Path(workspace, SafeWorkspaceName.PREFIX + "_*")),
+                        new Predicate<FileStatus>()
+                        {
+                            @Override
+                            public boolean apply(FileStatus status)
+                            {
+                                return isExpired(status, now);
+                            }
+                        });
+                Parallel.forEach("sweep", expired, threads, new Parallel.Action<FileStatus>()
+                {
+                    @Override
+                    public void run(FileStatus status)
+                    {
+                        logger.info("Delete the expired workspace: {}", status.getPath());
+                        if (!hdfsClient.delete(status.getPath(), true)) {
+                            logger.warn("Failed to delete the expired workspace: {}", status.getPath());
+                            return;
+                        }
+                        deleted.incrementAndGet();
+                    }
+                });
+                return deleted.get();
+            }
+        });
+        executor.shutdown();
+    }
+
+    void await()
+    {
+        if (sweep == null) {
+            return;
+        }
+        try {
+            logger.info("Deleted {} expired workspaces in {}", sweep.get(), workspace);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while deleting the expired workspaces in {}", workspace);
+        }
+        catch (ExecutionException e) {
+            logger.warn(String.format("Failed to delete the expired workspaces in %s", workspace), e.getCause());
+        }
+    }
+
+    private boolean isExpired(FileStatus status, long now)
+    {
+        String name = status.getPath().getName();
+        if (!status.isDirectory() || name.equals(currentName) || !SafeWorkspaceName.isSafeWorkspaceName(name)) {
+            return false;
+        }
+        Optional<Long> createdAt = SafeWorkspaceName.getCreatedAtMillis(name);
+        long age = now - Math.max(createdAt.or(0L), status.getModificationTime());
+        return age > ttlMillis;
+    }
+}
@@ -0,0 +1,36 @@
+package org.embulk.output.hdfs.util;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+// The roots where the output is spread, e.g. `hdfs://ns1`, `hdfs://ns2`, or the mount points of ViewFS.
+// The root of the default file system is the empty string, so that the paths are used as they are.
+public class Namespaces
+{
+    private Namespaces()
+    {
+    }
+
+    public static List<String> getRoots(List<String> namespaces)
+    {
+        if (namespaces.isEmpty()) {
+            return ImmutableList.of("");
+        }
+        ImmutableList.Builder<String> roots = ImmutableList.builder();
+        for (String namespace : namespaces) {
+            roots.add(CharMatcher.is('/').trimTrailingFrom(namespace));
+        }
+        return roots.build();
+    }
+
+    // NOTE: This concatenates the strings instead of Path, because the path may be a prefix of the file name.
+    public static String resolve(String root, String path)
+    {
+        if (root.isEmpty()) {
+            return path;
+        }
+        return path.startsWith("/") ? root + path : root + "/" + path;
+    }
+}
@@ -0,0 +1,129 @@
+package org.embulk.output.hdfs.util;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class Parallel
+{
+    private Parallel()
+    {
+    }
+
+    public interface Action<T>
+    {
+        void run(T item)
+                throws Exception;
+    }
+
+    // Runs the action for each item with the bounded number of threads, and waits for all of them.
+    public static <T> void forEach(String name, Collection<T> items, int threads, final Action<T> action)
+    {
+        if (items.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, items.size())),
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("embulk-output-hdfs-%s-%%d", name))
+                        .setDaemon(true)
+                        .build());
+        try {
+            List<Future<Void>> futures = Lists.newArrayList();
+            for (final T item : items) {
+                futures.add(executor.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                            throws Exception
+                    {
+                        action.run(item);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    // Runs the action for each item while the items are being produced by the iterator, e.g. a paginated listing.
+    // The number of the items taken from the iterator but not processed yet is bounded, so the memory is bounded.
+    public static <T> void forEach(String name, Iterator<T> items, int threads, final Action<T> action)
+    {
+        int n = Math.max(1, threads);
+        ExecutorService executor = Executors.newFixedThreadPool(n,
+                new ThreadFactoryBuilder()
+                        .setNameFormat(String.format("embulk-output-hdfs-%s-%%d", name))
+                        .setDaemon(true)
+                        .build());
+        final Semaphore pending = new Semaphore(n * 2);
+        final AtomicReference<Exception> failure = new AtomicReference<>();
+        try {
+            while (failure.get() == null && items.hasNext()) {
+                final T item = items.next();
+                pending.acquire();
+                executor.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try {
+                            if (failure.get() == null) {
+                                action.run(item);
+                            }
+                        }
+                        catch (Exception e) {
+                            failure.compareAndSet(null, e);
+                        }
+                        finally {
+                            pending.release();
+                        }
+                    }
+                });
+            }
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // wait for the running actions.
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        Exception e = failure.get();
+        if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        }
+        else if (e != null) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.embulk.output.hdfs.util;
+
+import com.google.common.base.Optional;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class RunId
+{
+    // Matches the run ids built by this class.
+    public static final String REGEX = "\\d{17}_[0-9a-f]{8}";
+    private static final Pattern PATTERN = Pattern.compile("^(\\d{17})_[0-9a-f]{8}$");
+
+    private RunId()
+    {
+    }
+
+    // Run ids are sorted in the order of the start time of the runs.
+    public static String build()
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmssSSS", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String uuid = UUID.randomUUID().toString().substring(0, 8);
+        return String.format("%s_%s", format.format(new Date()), uuid);
+    }
+
+    // Returns the start time of the run encoded in the run id, or absent if it is not a run id.
+    public static Optional<Long> getCreatedAtMillis(String runId)
+    {
+        Matcher m = PATTERN.matcher(runId);
+        if (!m.matches()) {
+            return Optional.absent();
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmssSSS", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        format.setLenient(false);
+        try {
+            return Optional.of(format.parse(m.group(1)).getTime());
+        }
+        catch (ParseException e) {
+            return Optional.absent();
+        }
+    }
+}
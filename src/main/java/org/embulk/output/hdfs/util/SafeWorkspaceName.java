@@ -1,11 +1,18 @@
 package org.embulk.output.hdfs.util;
 
+import com.google.common.base.Optional;
+
 import java.nio.file.Paths;
-import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class SafeWorkspaceName
 {
-    private static final String prefix = "embulk-output-hdfs";
+    public static final String PREFIX = "embulk-output-hdfs";
+    // e.g. embulk-output-hdfs_20191207123456789_0123abcd (the creation time in UTC and a random id)
+    private static final Pattern NAME = Pattern.compile("^" + PREFIX + "_(" + RunId.REGEX + ")$");
+    // e.g. embulk-output-hdfs_<nano time>_<uuid> built by the older versions
+    private static final Pattern LEGACY_NAME = Pattern.compile("^" + PREFIX + "_\\d+_[0-9a-f-]{36}$");
 
     private SafeWorkspaceName()
     {
@@ -13,9 +20,22 @@ public class SafeWorkspaceName
 
     public static String build(String workspace)
     {
-        long nanoTime = System.nanoTime();
-        String uuid = UUID.randomUUID().toString();
-        String dirname = String.format("%s_%d_%s", prefix, nanoTime, uuid);
+        String dirname = String.format("%s_%s", PREFIX, RunId.build());
         return Paths.get(workspace, dirname).toString();
     }
+
+    public static boolean isSafeWorkspaceName(String name)
+    {
+        return NAME.matcher(name).matches() || LEGACY_NAME.matcher(name).matches();
+    }
+
+    // Returns the creation time encoded in the name, or absent if the name is built by the older versions.
+    public static Optional<Long> getCreatedAtMillis(String name)
+    {
+        Matcher m = NAME.matcher(name);
+        if (!m.matches()) {
+            return Optional.absent();
+        }
+        return RunId.getCreatedAtMillis(m.group(1));
+    }
 }
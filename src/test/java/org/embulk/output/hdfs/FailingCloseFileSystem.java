@@ -0,0 +1,33 @@
+package org.embulk.output.hdfs;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+import java.io.IOException;
+
+// Simulates the failure of closing a file, e.g. the completeFile RPC fails.
+public class FailingCloseFileSystem
+        extends RawLocalFileSystem
+{
+    public static final String MESSAGE = "Failed to close by FailingCloseFileSystem";
+
+    @Override
+    public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+            short replication, long blockSize, Progressable progress)
+            throws IOException
+    {
+        return new FSDataOutputStream(super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress), null)
+        {
+            @Override
+            public void close()
+                    throws IOException
+            {
+                super.close();
+                throw new IOException(MESSAGE);
+            }
+        };
+    }
+}
@@ -0,0 +1,38 @@
+package org.embulk.output.hdfs;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Simulates the rename of object stores: not atomic, and copies every object.
+public class SlowRenameFileSystem
+        extends RawLocalFileSystem
+{
+    public static final AtomicLong copiedObjects = new AtomicLong(0);
+
+    @Override
+    public boolean rename(Path src, Path dst)
+            throws IOException
+    {
+        copiedObjects.addAndGet(countObjects(src));
+        return FileUtil.copy(this, src, this, dst, true, getConf());
+    }
+
+    private long countObjects(Path path)
+            throws IOException
+    {
+        FileStatus status = getFileStatus(path);
+        if (!status.isDirectory()) {
+            return 1;
+        }
+        long n = 0;
+        for (FileStatus child : listStatus(path)) {
+            n += countObjects(child.getPath());
+        }
+        return n;
+    }
+}
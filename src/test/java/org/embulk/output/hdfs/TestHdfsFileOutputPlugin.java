@@ -2,14 +2,30 @@ package org.embulk.output.hdfs;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.CharStreams;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
 import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigDiff;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.TaskReport;
 import org.embulk.config.TaskSource;
+import org.embulk.output.hdfs.client.HdfsClient;
+import org.embulk.output.hdfs.util.RunId;
+import org.embulk.output.hdfs.util.SafeWorkspaceName;
+import org.embulk.spi.DataException;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FileOutputRunner;
 import org.embulk.spi.OutputPlugin.Control;
@@ -27,11 +43,18 @@ import org.junit.rules.TemporaryFolder;
 import org.slf4j.Logger;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static com.google.common.io.Files.readLines;
 import static org.embulk.output.hdfs.HdfsFileOutputPlugin.*;
@@ -41,9 +64,12 @@ import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.core.Is.isA;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.msgpack.value.ValueFactory.newMap;
 import static org.msgpack.value.ValueFactory.newString;
 
@@ -123,14 +149,56 @@ public class TestHdfsFileOutputPlugin
         PluginTask task = config.loadConfig(PluginTask.class);
     }
 
-    @Test(expected = ConfigException.class)
-    public void testSequenceFormatMode_replace()
+    @Test
+    public void testGlobIterator()
+            throws IOException
     {
-        run(getBaseConfigSource()
-                .set("mode", "replace")
-                .set("sequence_format", "%d/%d"));
+        String root = tmpFolder.getRoot().getAbsolutePath();
+        tmpFolder.newFile("a_1.csv");
+        tmpFolder.newFile("a_2.csv");
+        tmpFolder.newFile("b_1.csv");
+        tmpFolder.newFolder("a_dir");
+        HdfsClient hdfsClient = HdfsClient.build(getBaseConfigSource().loadConfig(PluginTask.class));
+
+        // The names in the parent are listed page by page and filtered by the pattern.
+        assertEquals(Lists.newArrayList("a_1.csv", "a_2.csv", "a_dir"),
+                globNames(hdfsClient, new Path(root + "/a_*")));
+        assertEquals(Lists.<String>newArrayList(), globNames(hdfsClient, new Path(root + "/c_*")));
+        // A missing parent has no entries.
+        assertEquals(Lists.<String>newArrayList(), globNames(hdfsClient, new Path(root + "/missing/a_*")));
     }
 
+    @Test
+    public void testGlobIterator_fallbackToGlob()
+            throws IOException
+    {
+        String root = tmpFolder.getRoot().getAbsolutePath();
+        tmpFolder.newFolder("d1");
+        tmpFolder.newFolder("d2");
+        tmpFolder.newFile("d1/a_1.csv");
+        tmpFolder.newFile("d2/a_2.csv");
+        tmpFolder.newFile("d2/b_1.csv");
+        HdfsClient hdfsClient = HdfsClient.build(getBaseConfigSource().loadConfig(PluginTask.class));
+
+        // The pattern in the parent falls back to the glob.
+        assertEquals(Lists.newArrayList("a_1.csv", "a_2.csv"), globNames(hdfsClient, new Path(root + "/d*/a_*")));
+        // The name without the pattern falls back to the glob as well.
+        assertEquals(Lists.newArrayList("b_1.csv"), globNames(hdfsClient, new Path(root + "/d2/b_1.csv")));
+        assertEquals(Lists.<String>newArrayList(), globNames(hdfsClient, new Path(root + "/d2/missing.csv")));
+    }
+
+    private List<String> globNames(HdfsClient hdfsClient, Path globPath)
+    {
+        List<String> names = Lists.newArrayList();
+        Iterator<FileStatus> statuses = hdfsClient.globIterator(globPath);
+        while (statuses.hasNext()) {
+            names.add(statuses.next().getPath().getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+
     private List<String> lsR(List<String> names, java.nio.file.Path dir)
     {
         try (DirectoryStream<java.nio.file.Path> stream = Files.newDirectoryStream(dir)) {
@@ -152,15 +220,28 @@ public class TestHdfsFileOutputPlugin
         return names;
     }
 
-    private void run(ConfigSource config)
+    private ConfigDiff run(ConfigSource config)
+    {
+        return run(config, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+            }
+        });
+    }
+
+    // Runs the task after beforeTasks, which is called in the transaction.
+    private ConfigDiff run(ConfigSource config, final Runnable beforeTasks)
     {
-        runner.transaction(config, SCHEMA, 1, new Control()
+        return runner.transaction(config, SCHEMA, 1, new Control()
         {
             @Override
             public List<TaskReport> run(TaskSource taskSource)
             {
+                beforeTasks.run();
                 TransactionalPageOutput pageOutput = runner.open(taskSource, SCHEMA, 1);
-                boolean committed = false;
+                TaskReport report = null;
                 try {
                     // Result:
                     // _c0,_c1,_c2,_c3,_c4,_c5
@@ -171,16 +252,15 @@ public class TestHdfsFileOutputPlugin
                             true, 2L, 3.0D, "45", Timestamp.ofEpochMilli(678L), newMap(newString("k"), newString("v")))) {
                         pageOutput.add(page);
                     }
-                    pageOutput.commit();
-                    committed = true;
+                    report = pageOutput.commit();
                 }
                 finally {
-                    if (!committed) {
+                    if (report == null) {
                         pageOutput.abort();
                     }
                     pageOutput.close();
                 }
-                return Lists.newArrayList();
+                return Lists.newArrayList(report);
             }
         });
     }
@@ -408,4 +488,548 @@ public class TestHdfsFileOutputPlugin
                 tmpFolder.getRoot().getAbsolutePath(),
                 pathPrefix));
     }
+
+    @Test
+    public void testMode_replace_withWorkspaceTtl()
+            throws IOException
+    {
+        File workspace = tmpFolder.newFolder("workspace");
+        File expired = new File(workspace, "embulk-output-hdfs_20191207000000000_0123abcd");
+        File expiredLegacy = new File(workspace, "embulk-output-hdfs_123456789_01234567-89ab-cdef-0123-456789abcdef");
+        File fresh = new File(SafeWorkspaceName.build(workspace.getAbsolutePath()));
+        // The old workspace modified recently may be used by a long-running job.
+        File modified = new File(workspace, "embulk-output-hdfs_20191207000000000_4567cdef");
+        File other = new File(workspace, "other_20191207000000000_0123abcd");
+        for (File dir : Lists.newArrayList(expired, expiredLegacy, fresh, modified, other)) {
+            assertTrue(new File(dir, "sub").mkdirs());
+        }
+        assertTrue(expired.setLastModified(System.currentTimeMillis() - 7200 * 1000L));
+        assertTrue(expiredLegacy.setLastModified(System.currentTimeMillis() - 7200 * 1000L));
+
+        run(getBaseConfigSource()
+                .set("config", getDefaultFsConfig())
+                .set("mode", "replace")
+                .set("workspace", workspace.getAbsolutePath())
+                .set("workspace_ttl_seconds", 3600));
+
+        assertFalse(expired.exists());
+        assertFalse(expiredLegacy.exists());
+        assertTrue(fresh.exists());
+        assertTrue(modified.exists());
+        assertTrue(other.exists());
+        // The workspace of this run is deleted after the success.
+        List<String> names = Lists.newArrayList(workspace.list());
+        Collections.sort(names);
+        assertEquals(Lists.newArrayList(fresh.getName(), modified.getName(), other.getName()), names);
+        File outputFile = new File(pathPrefix + "001.00.csv");
+        assertTrue(outputFile.exists());
+        assertRecordsInFile(outputFile.getAbsolutePath());
+    }
+
+    @Test
+    public void testNamespaces()
+            throws IOException
+    {
+        File ns1 = tmpFolder.newFolder("ns1");
+        File ns2 = tmpFolder.newFolder("ns2");
+        String outputDir = tmpFolder.getRoot().getAbsolutePath();
+        // The output directory on each namespace has the file written by the previous run.
+        List<File> staleFiles = Lists.newArrayList(
+                new File(ns1, outputDir + "/embulk-output-hdfs_stale.csv"),
+                new File(ns2, outputDir + "/embulk-output-hdfs_stale.csv"));
+        for (File staleFile : staleFiles) {
+            assertTrue(staleFile.getParentFile().mkdirs());
+            assertTrue(staleFile.createNewFile());
+        }
+        String indexPath = outputDir + "/_index";
+
+        run(getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig()
+                        .set("fs.viewfs.mounttable.cluster.link./ns1", "file://" + ns1.getAbsolutePath())
+                        .set("fs.viewfs.mounttable.cluster.link./ns2", "file://" + ns2.getAbsolutePath()))
+                .set("mode", "replace")
+                .set("namespaces", Lists.newArrayList("viewfs://cluster/ns1", "viewfs://cluster/ns2"))
+                .set("index_path", indexPath));
+
+        // The task 1 writes the first file into the 2nd namespace, and the output directories are replaced on both.
+        for (File staleFile : staleFiles) {
+            assertFalse(staleFile.exists());
+        }
+        assertTrue(new File(ns2, pathPrefix + "001.00.csv").exists());
+        assertRecordsInFile(new File(ns2, pathPrefix + "001.00.csv").getAbsolutePath());
+        assertEquals(Lists.newArrayList("viewfs://cluster/ns2" + pathPrefix + "001.00.csv"),
+                readLines(new File(indexPath), Charsets.UTF_8));
+    }
+
+    @Test
+    public void testBlockCompression_bgzf()
+            throws IOException
+    {
+        // The index is written out of `max_open_streams`, so a single permit does not block the task.
+        run(getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("block_compression", "bgzf")
+                .set("max_open_streams", 1));
+
+        File file = new File(pathPrefix + "001.00.csv.gz");
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            assertEquals(3, CharStreams.readLines(new InputStreamReader(in, Charsets.UTF_8)).size());
+        }
+        // An index entry of the first block.
+        assertEquals(16, new File(pathPrefix + "001.00.csv.gz.idx").length());
+    }
+
+    @Test
+    public void testPrecreateDirectories()
+    {
+        run(getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("sequence_format", "%03d/%02d/part")
+                .set("precreate_directories", true));
+
+        File file = new File(pathPrefix + "001/00/part.csv");
+        assertTrue(file.exists());
+        assertRecordsInFile(file.getAbsolutePath());
+    }
+
+    @Test
+    public void testPrecreateDirectories_missingDirectory()
+    {
+        final File dir = new File(pathPrefix + "001/00");
+        // The directory made in the transaction is deleted before the task, e.g. by another job.
+        run(getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("sequence_format", "%03d/%02d/part")
+                .set("precreate_directories", true), new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                assertTrue(dir.isDirectory());
+                assertTrue(dir.delete());
+            }
+        });
+
+        // The create falls back to the recursive one.
+        File file = new File(dir, "part.csv");
+        assertTrue(file.exists());
+        assertRecordsInFile(file.getAbsolutePath());
+    }
+
+    @Test
+    public void testStaging_local()
+            throws IOException
+    {
+        File stagingDir = tmpFolder.newFolder("staging");
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("staging", "local")
+                .set("staging_dir", stagingDir.getAbsolutePath());
+
+        run(config);
+
+        List<String> fileList = lsR(Lists.<String>newArrayList(), Paths.get(tmpFolder.getRoot().getAbsolutePath()));
+        assertThat(fileList, hasItem(containsString(pathPrefix + "001.00.csv")));
+        assertRecordsInFile(String.format("%s/%s001.00.csv",
+                tmpFolder.getRoot().getAbsolutePath(),
+                pathPrefix));
+        assertEquals(Lists.<String>newArrayList(), lsR(Lists.<String>newArrayList(), stagingDir.toPath()));
+    }
+
+    @Test
+    public void testContinueSequence()
+    {
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("mode", "abort_if_exist")
+                .set("continue_sequence", true);
+
+        ConfigDiff configDiff = run(config);
+        assertEquals(2, (int) configDiff.get(Integer.class, "sequence_task_offset"));
+
+        // The next run does not conflict with the files written by the previous run.
+        configDiff = run(config.merge(configDiff));
+        assertEquals(4, (int) configDiff.get(Integer.class, "sequence_task_offset"));
+        assertTrue(new File(pathPrefix + "001.00.csv").exists());
+        assertTrue(new File(pathPrefix + "003.00.csv").exists());
+        assertRecordsInFile(pathPrefix + "001.00.csv");
+        assertRecordsInFile(pathPrefix + "003.00.csv");
+    }
+
+    @Test
+    public void testContainer_sequenceFile()
+            throws IOException
+    {
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("container", "sequence_file");
+
+        run(config);
+
+        Configuration conf = new Configuration();
+        org.apache.hadoop.fs.Path path = new org.apache.hadoop.fs.Path(
+                String.format("file://%s001.00.csv.seq", pathPrefix));
+        try (SequenceFile.Reader reader = new SequenceFile.Reader(conf, SequenceFile.Reader.file(path))) {
+            Text key = new Text();
+            BytesWritable value = new BytesWritable();
+            assertTrue(reader.next(key, value));
+            assertEquals(new File(pathPrefix + "001.00.csv").getName(), key.toString());
+            String content = new String(value.copyBytes(), Charsets.UTF_8);
+            assertThat(content, containsString("_c0,_c1,_c2,_c3,_c4,_c5"));
+            assertFalse(reader.next(key, value));
+        }
+    }
+
+    @Test
+    public void testContainer_mapFile()
+            throws IOException
+    {
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("container", "map_file");
+
+        run(config);
+
+        Configuration conf = new Configuration();
+        org.apache.hadoop.fs.Path path = new org.apache.hadoop.fs.Path(
+                String.format("file://%s001.00.csv.map", pathPrefix));
+        try (MapFile.Reader reader = new MapFile.Reader(path, conf)) {
+            BytesWritable value = new BytesWritable();
+            assertNotNull(reader.get(new Text(new File(pathPrefix + "001.00.csv").getName()), value));
+            String content = new String(value.copyBytes(), Charsets.UTF_8);
+            assertThat(content, containsString("_c0,_c1,_c2,_c3,_c4,_c5"));
+        }
+    }
+
+    @Test
+    public void testContainer_maxEntryBytes()
+    {
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("container", "sequence_file")
+                .set("container_max_entry_bytes", 10);
+        try {
+            run(config);
+            fail("must fail because the file exceeds container_max_entry_bytes");
+        }
+        catch (RuntimeException e) {
+            assertTrue(Iterables.any(Throwables.getCausalChain(e), Predicates.instanceOf(DataException.class)));
+        }
+    }
+
+    @Test
+    public void testLocalFastPath()
+    {
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig()
+                        .set("fs.file.impl", "org.apache.hadoop.fs.LocalFileSystem"))
+                .set("mode", "overwrite");
+        String crcPath = String.format("%s/.%s001.00.csv.crc", tmpFolder.getRoot().getAbsolutePath(),
+                new File(pathPrefix).getName());
+
+        run(config);
+        assertTrue(new File(crcPath).exists());
+
+        // The stale checksum is removed, and the file is overwritten without the checksum.
+        run(config.set("local_fast_path", true).set("fsync_on_close", true));
+        assertFalse(new File(crcPath).exists());
+        assertRecordsInFile(String.format("%s001.00.csv", pathPrefix));
+    }
+
+    @Test
+    public void testAsyncCloseAndPreOpen()
+    {
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("mode", "overwrite")
+                .set("max_in_flight_closes", 2)
+                .set("pre_open_next_file", true);
+
+        run(config);
+
+        assertRecordsInFile(String.format("%s001.00.csv", pathPrefix));
+        // The pre-opened file is deleted because it is not used.
+        assertFalse(new File(String.format("%s001.01.csv", pathPrefix)).exists());
+    }
+
+    @Test
+    public void testAsyncClose_failure()
+    {
+        ConfigSource config = getBaseConfigSource()
+                .set("config", getDefaultFsConfig()
+                        .set("fs.file.impl", FailingCloseFileSystem.class.getName())
+                        .set("fs.file.impl.disable.cache", "true"))
+                .set("mode", "overwrite")
+                .set("max_in_flight_closes", 2);
+
+        // The failure of the close in background is thrown when the task finishes.
+        try {
+            run(config);
+            fail("must fail because the close fails");
+        }
+        catch (RuntimeException e) {
+            boolean found = false;
+            for (Throwable t : Throwables.getCausalChain(e)) {
+                found |= t instanceof IOException && FailingCloseFileSystem.MESSAGE.equals(t.getMessage());
+            }
+            assertTrue(found);
+        }
+    }
+
+    @Test
+    public void testSkipUnchanged()
+            throws IOException
+    {
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("mode", "overwrite")
+                .set("staging", "local")
+                .set("staging_dir", tmpFolder.newFolder("staging").getAbsolutePath())
+                .set("skip_unchanged", true);
+        File file = new File(pathPrefix + "001.00.csv");
+
+        run(config);
+        assertTrue(file.exists());
+        assertTrue(file.setLastModified(0L));
+        run(config);
+
+        // The file is uploaded again because the local file system does not store the digest in the xattr.
+        assertNotEquals(0L, file.lastModified());
+        assertRecordsInFile(file.getAbsolutePath());
+
+        assertTrue(file.setLastModified(0L));
+        run(config.set("skip_unchanged_read_back", true));
+
+        // The file is kept because the content is the same.
+        assertEquals(0L, file.lastModified());
+        assertRecordsInFile(file.getAbsolutePath());
+    }
+
+    @Test(expected = ConfigException.class)
+    public void testSkipUnchanged_withoutStaging()
+    {
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("mode", "overwrite")
+                .set("skip_unchanged", true);
+        run(config);
+    }
+
+    @Test
+    public void testMode_replace_direct()
+            throws IOException
+    {
+        for (int n = 0; n <= 10; n++) {
+            tmpFolder.newFile("embulk-output-hdfs_testMode_replace_direct_file_" + n + ".txt");
+        }
+        ConfigSource config = getBaseConfigSource()
+                .set("config", getDefaultFsConfig()
+                        .set("fs.file.impl", SlowRenameFileSystem.class.getName())
+                        .set("fs.file.impl.disable.cache", "true"))
+                .set("mode", "replace_direct");
+
+        SlowRenameFileSystem.copiedObjects.set(0);
+        run(config);
+        run(config);
+        assertEquals(0, SlowRenameFileSystem.copiedObjects.get());
+
+        List<String> fileListAfterRun = lsR(Lists.<String>newArrayList(), Paths.get(tmpFolder.getRoot().getAbsolutePath()));
+        // The files which are not written by this output are kept.
+        for (int n = 0; n <= 10; n++) {
+            assertThat(fileListAfterRun, hasItem(containsString("embulk-output-hdfs_testMode_replace_direct_file_" + n + ".txt")));
+        }
+        assertThat(fileListAfterRun, hasItem(containsString("_MANIFEST")));
+        List<String> csvFiles = Lists.newArrayList();
+        for (String path : fileListAfterRun) {
+            if (path.endsWith(".csv")) {
+                csvFiles.add(path);
+            }
+        }
+        assertEquals(1, csvFiles.size());
+        assertThat(csvFiles.get(0), containsString(pathPrefix + "001.00."));
+        assertRecordsInFile(csvFiles.get(0));
+
+        List<String> manifest = readLines(new File(tmpFolder.getRoot(), "_MANIFEST"), Charsets.UTF_8);
+        assertEquals(2, manifest.size());
+        assertEquals(Paths.get(csvFiles.get(0)).getFileName().toString(), manifest.get(1));
+    }
+
+    @Test
+    public void testMode_replace_direct_withTrash()
+    {
+        // The files of the previous runs are deleted without the trash, which renames (copies) them on object stores.
+        ConfigSource config = getBaseConfigSource()
+                .set("config", getDefaultFsConfig()
+                        .set("fs.file.impl", SlowRenameFileSystem.class.getName())
+                        .set("fs.file.impl.disable.cache", "true")
+                        .set("fs.trash.interval", "10"))
+                .set("mode", "replace_direct")
+                .set("sequence_format", "%03d_%02d_");
+
+        SlowRenameFileSystem.copiedObjects.set(0);
+        run(config);
+        run(config);
+        assertEquals(0, SlowRenameFileSystem.copiedObjects.get());
+
+        File[] csvFiles = tmpFolder.getRoot().listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(".csv");
+            }
+        });
+        assertEquals(1, csvFiles.length);
+        assertThat(csvFiles[0].getName(), containsString("embulk-output-hdfs_001_00_"));
+        assertRecordsInFile(csvFiles[0].getAbsolutePath());
+    }
+
+    @Test
+    public void testMode_replace_direct_mapFile()
+    {
+        ConfigSource config = getBaseConfigSource()
+                .set("config", getDefaultFsConfig())
+                .set("mode", "replace_direct")
+                .set("container", "map_file");
+
+        run(config);
+        run(config);
+
+        // The MapFile directory of the previous run is deleted.
+        File[] mapFiles = tmpFolder.getRoot().listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.endsWith(".map");
+            }
+        });
+        assertEquals(1, mapFiles.length);
+        assertTrue(new File(mapFiles[0], MapFile.DATA_FILE_NAME).exists());
+        assertTrue(new File(mapFiles[0], MapFile.INDEX_FILE_NAME).exists());
+    }
+
+    @Test
+    public void testMode_replace_versioned()
+            throws IOException
+    {
+        ConfigSource config = getBaseConfigSource()
+                .set("config", getDefaultFsConfig())
+                .set("mode", "replace_versioned")
+                .set("versioned_retention", 2);
+        // The version left by a failed run is not counted and deleted.
+        File unpublished = tmpFolder.newFolder("_v=20000101000000000_00000000");
+
+        run(config);
+        run(config);
+        run(config);
+
+        File[] versions = tmpFolder.getRoot().listFiles(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File dir, String name)
+            {
+                return name.startsWith("_v=");
+            }
+        });
+        assertEquals(2, versions.length);
+        assertFalse(unpublished.exists());
+        for (File version : versions) {
+            assertTrue(new File(version, "_PUBLISHED").exists());
+        }
+
+        List<String> pointer = readLines(new File(tmpFolder.getRoot(), "_CURRENT"), Charsets.UTF_8);
+        assertEquals(1, pointer.size());
+        assertThat(pointer.get(0), containsString("_v="));
+        File currentFile = new File(new File(tmpFolder.getRoot(), pointer.get(0)), "embulk-output-hdfs_001.00.csv");
+        assertTrue(currentFile.exists());
+        assertRecordsInFile(currentFile.getAbsolutePath());
+    }
+
+    @Test
+    public void testMode_replace_partitioned()
+            throws IOException
+    {
+        File touched = tmpFolder.newFolder("embulk-output-hdfs_001");
+        File untouched = tmpFolder.newFolder("embulk-output-hdfs_002");
+        assertTrue(new File(touched, "old.txt").createNewFile());
+        assertTrue(new File(untouched, "old.txt").createNewFile());
+
+        run(getBaseConfigSource()
+                .set("config", getDefaultFsConfig())
+                .set("mode", "replace")
+                .set("sequence_format", "%03d/%02d."));
+
+        List<String> fileListAfterRun = lsR(Lists.<String>newArrayList(), Paths.get(tmpFolder.getRoot().getAbsolutePath()));
+        assertThat(fileListAfterRun, hasItem(containsString(pathPrefix + "001/00.csv")));
+        assertThat(fileListAfterRun, not(hasItem(containsString(pathPrefix + "001/old.txt"))));
+        assertThat(fileListAfterRun, hasItem(containsString(pathPrefix + "002/old.txt")));
+        assertRecordsInFile(pathPrefix + "001/00.csv");
+    }
+
+    @Test
+    public void testMode_delete_recursive_in_advance_in_background()
+            throws IOException
+    {
+        for (int n = 0; n <= 10; n++) {
+            tmpFolder.newFile("embulk-output-hdfs_testMode_delete_recursive_in_advance_file_" + n + ".txt");
+            tmpFolder.newFolder("embulk-output-hdfs_testMode_delete_recursive_in_advance_directory_" + n);
+        }
+
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("mode", "delete_recursive_in_advance")
+                .set("delete_in_background", true);
+
+        run(config);
+
+        List<String> fileListAfterRun = lsR(Lists.<String>newArrayList(), Paths.get(tmpFolder.getRoot().getAbsolutePath()));
+        assertThat(fileListAfterRun, not(hasItem(containsString("embulk-output-hdfs_testMode_delete_recursive_in_advance_directory_"))));
+        assertThat(fileListAfterRun, not(hasItem(containsString("txt"))));
+        assertThat(fileListAfterRun, not(hasItem(containsString(".embulk-output-hdfs-tombstone_"))));
+        assertThat(fileListAfterRun, hasItem(containsString(pathPrefix + "001.00.csv")));
+        assertRecordsInFile(pathPrefix + "001.00.csv");
+    }
+
+    @Test
+    public void testMode_delete_files_in_advance_in_background()
+            throws IOException
+    {
+        for (int n = 0; n <= 10; n++) {
+            tmpFolder.newFile("embulk-output-hdfs_testMode_delete_files_in_advance_file_" + n + ".txt");
+        }
+        File directory = tmpFolder.newFolder("embulk-output-hdfs_testMode_delete_files_in_advance_directory");
+        // The tombstone left by an old run is purged, and the one of a concurrent run is not touched.
+        File expired = tmpFolder.newFolder(".embulk-output-hdfs-tombstone_20000101000000000_00000000");
+        File concurrent = tmpFolder.newFolder(".embulk-output-hdfs-tombstone_" + RunId.build());
+
+        run(getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("mode", "delete_files_in_advance")
+                .set("delete_in_background", true));
+
+        List<String> fileListAfterRun = lsR(Lists.<String>newArrayList(), Paths.get(tmpFolder.getRoot().getAbsolutePath()));
+        assertThat(fileListAfterRun, not(hasItem(containsString("txt"))));
+        assertTrue(directory.exists());
+        assertFalse(expired.exists());
+        assertTrue(concurrent.exists());
+        assertThat(fileListAfterRun, hasItem(containsString(pathPrefix + "001.00.csv")));
+        assertRecordsInFile(pathPrefix + "001.00.csv");
+    }
+
+    @Test
+    public void testMaxOpenStreams()
+    {
+        ConfigSource config = getBaseConfigSource()
+                .setNested("config", getDefaultFsConfig())
+                .set("mode", "overwrite")
+                .set("max_open_streams", 1);
+
+        // The stream must be released after the first run, otherwise the second run waits forever.
+        run(config);
+        run(config);
+        assertRecordsInFile(String.format("%s/%s001.00.csv",
+                tmpFolder.getRoot().getAbsolutePath(),
+                pathPrefix));
+    }
 }
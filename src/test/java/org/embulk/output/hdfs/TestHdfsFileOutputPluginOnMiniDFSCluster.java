@@ -0,0 +1,437 @@
+package org.embulk.output.hdfs;
+
+import com.google.common.base.Predicates;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DistributedFileSystem;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.HdfsConstants;
+import org.apache.hadoop.hdfs.protocol.QuotaExceededException;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.net.NetUtils;
+import org.apache.hadoop.security.UserGroupInformation;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin.PluginTask.Placement;
+import org.embulk.output.hdfs.client.BlockPlacement;
+import org.embulk.spi.DataException;
+import org.embulk.spi.Exec;
+import org.embulk.spi.FileOutputRunner;
+import org.embulk.spi.OutputPlugin.Control;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.PrivilegedExceptionAction;
+import java.util.List;
+
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestHdfsFileOutputPluginOnMiniDFSCluster
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private static final Schema SCHEMA = new Schema.Builder()
+            .add("_c0", LONG)
+            .add("_c1", STRING)
+            .build();
+
+    private MiniDFSCluster cluster;
+    private FileSystem fs;
+    private FileOutputRunner runner;
+
+    @Before
+    public void startCluster()
+            throws IOException
+    {
+        Configuration conf = new Configuration();
+        conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, tmpFolder.getRoot().getAbsolutePath());
+        conf.setLong("dfs.namenode.fs-limits.min-block-size", 0);
+        cluster = new MiniDFSCluster.Builder(conf).numDataNodes(3).build();
+        cluster.waitActive();
+        fs = FileSystem.newInstance(cluster.getURI(), conf);
+        runner = new FileOutputRunner(runtime.getInstance(HdfsFileOutputPlugin.class));
+    }
+
+    @After
+    public void shutdownCluster()
+            throws IOException
+    {
+        fs.close();
+        cluster.shutdown();
+    }
+
+    private ConfigSource getBaseConfigSource()
+    {
+        return Exec.newConfigSource()
+                .set("type", "hdfs")
+                .set("path_prefix", "/embulk/out_")
+                .set("file_ext", "csv")
+                .setNested("config", Exec.newConfigSource()
+                        .set("fs.defaultFS", cluster.getURI().toString())
+                        .set("dfs.replication", "1"))
+                .setNested("formatter", Exec.newConfigSource()
+                        .set("type", "csv")
+                        .set("charset", "UTF-8"));
+    }
+
+    private void run(ConfigSource config)
+    {
+        run(config, false);
+    }
+
+    private void run(ConfigSource config, final boolean failAfterWrite)
+    {
+        runner.transaction(config, SCHEMA, 1, new Control()
+        {
+            @Override
+            public List<TaskReport> run(TaskSource taskSource)
+            {
+                TransactionalPageOutput pageOutput = runner.open(taskSource, SCHEMA, 0);
+                TaskReport report = null;
+                try {
+                    for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), SCHEMA,
+                            1L, "a", 2L, "b", 3L, "c")) {
+                        pageOutput.add(page);
+                    }
+                    if (failAfterWrite) {
+                        pageOutput.finish();
+                        throw new IllegalStateException("Failed after write");
+                    }
+                    report = pageOutput.commit();
+                }
+                finally {
+                    if (report == null) {
+                        pageOutput.abort();
+                    }
+                    pageOutput.close();
+                }
+                return Lists.newArrayList(report);
+            }
+        });
+    }
+
+    private String getXferAddr(DataNode dataNode)
+    {
+        InetSocketAddress address = dataNode.getXferAddress();
+        return String.format("%s:%d", address.getAddress().getHostAddress(), address.getPort());
+    }
+
+    @Test
+    public void testFavoredNodes()
+            throws IOException
+    {
+        for (DataNode dataNode : cluster.getDataNodes()) {
+            String favoredNode = getXferAddr(dataNode);
+            fs.delete(new Path("/embulk"), true);
+
+            run(getBaseConfigSource()
+                    .set("mode", "overwrite")
+                    .set("favored_nodes", Lists.newArrayList(favoredNode)));
+
+            FileStatus status = fs.getFileStatus(new Path("/embulk/out_000.00.csv"));
+            BlockLocation[] locations = fs.getFileBlockLocations(status, 0, status.getLen());
+            assertEquals(1, locations.length);
+            assertEquals(favoredNode, locations[0].getNames()[0]);
+        }
+    }
+
+    private List<String> getXferAddrs()
+    {
+        List<String> addrs = Lists.newArrayList();
+        for (DataNode dataNode : cluster.getDataNodes()) {
+            addrs.add(getXferAddr(dataNode));
+        }
+        return addrs;
+    }
+
+    private String getFirstReplica(String path)
+            throws IOException
+    {
+        FileStatus status = fs.getFileStatus(new Path(path));
+        BlockLocation[] locations = fs.getFileBlockLocations(status, 0, status.getLen());
+        assertEquals(1, locations.length);
+        return locations[0].getNames()[0];
+    }
+
+    @Test
+    public void testPlacement_local()
+            throws IOException
+    {
+        // NOTE: All the DataNodes of MiniDFSCluster run on the local host.
+        InetSocketAddress[] favoredNodes = new BlockPlacement(Placement.LOCAL, Lists.<String>newArrayList())
+                .getFavoredNodes(fs, fs.getConf(), (short) 1);
+        assertEquals(1, favoredNodes.length);
+        String localNode = String.format("%s:%d", favoredNodes[0].getAddress().getHostAddress(), favoredNodes[0].getPort());
+        assertTrue(getXferAddrs().contains(localNode));
+
+        run(getBaseConfigSource().set("placement", "local"));
+        assertEquals(localNode, getFirstReplica("/embulk/out_000.00.csv"));
+    }
+
+    @Test
+    public void testPlacement_no_local()
+            throws IOException
+    {
+        run(getBaseConfigSource().set("placement", "no_local"));
+        assertTrue(getXferAddrs().contains(getFirstReplica("/embulk/out_000.00.csv")));
+    }
+
+    @Test
+    public void testPlacement_rack_local()
+            throws IOException
+    {
+        // NOTE: All the DataNodes and the local host are in the default rack.
+        InetSocketAddress[] favoredNodes = new BlockPlacement(Placement.RACK_LOCAL, Lists.<String>newArrayList())
+                .getFavoredNodes(fs, fs.getConf(), (short) 2);
+        assertEquals(2, favoredNodes.length);
+        for (InetSocketAddress node : favoredNodes) {
+            assertTrue(getXferAddrs().contains(String.format("%s:%d", node.getAddress().getHostAddress(), node.getPort())));
+        }
+
+        run(getBaseConfigSource().set("placement", "rack_local"));
+        assertTrue(getXferAddrs().contains(getFirstReplica("/embulk/out_000.00.csv")));
+    }
+
+    @Test
+    public void testPlacement_nonSuperuser()
+            throws Exception
+    {
+        // The DataNode report is denied to the non-superuser.
+        final Configuration conf = fs.getConf();
+        FileSystem userFs = UserGroupInformation.createRemoteUser("embulk").doAs(new PrivilegedExceptionAction<FileSystem>()
+        {
+            @Override
+            public FileSystem run()
+                    throws IOException
+            {
+                return FileSystem.newInstance(cluster.getURI(), conf);
+            }
+        });
+        try {
+            // `local` assumes the DataNode on the local host with the port of `dfs.datanode.address`.
+            InetSocketAddress[] localNodes = new BlockPlacement(Placement.LOCAL, Lists.<String>newArrayList())
+                    .getFavoredNodes(userFs, conf, (short) 1);
+            assertEquals(1, localNodes.length);
+            assertTrue(NetUtils.isLocalAddress(localNodes[0].getAddress()));
+            assertEquals(NetUtils.createSocketAddr(conf.get("dfs.datanode.address", "0.0.0.0:50010")).getPort(),
+                    localNodes[0].getPort());
+
+            // `rack_local` falls back to the default placement.
+            InetSocketAddress[] rackLocalNodes = new BlockPlacement(Placement.RACK_LOCAL, Lists.<String>newArrayList())
+                    .getFavoredNodes(userFs, conf, (short) 2);
+            assertEquals(0, rackLocalNodes.length);
+        }
+        finally {
+            userFs.close();
+        }
+    }
+
+    @Test
+    public void testQuotaCheck()
+            throws IOException
+    {
+        Path dir = new Path("/embulk");
+        fs.mkdirs(dir);
+        ((DistributedFileSystem) fs).setQuota(dir, HdfsConstants.QUOTA_DONT_SET, 1024L * 1024 * 1024);
+
+        // fits in the quota.
+        run(getBaseConfigSource()
+                .set("mode", "overwrite")
+                .set("quota_check", "abort")
+                .set("expected_output_bytes", 1024));
+        assertTrue(fs.exists(new Path("/embulk/out_000.00.csv")));
+
+        try {
+            run(getBaseConfigSource()
+                    .set("mode", "overwrite")
+                    .set("quota_check", "abort")
+                    .set("expected_output_bytes", 2L * 1024 * 1024 * 1024));
+            fail("must abort before uploading");
+        }
+        catch (DataException e) {
+            assertTrue(e.getMessage().contains("does not fit in the space quota"));
+        }
+    }
+
+    @Test
+    public void testQuotaCheck_stopBeforeExceeded()
+            throws IOException
+    {
+        Path dir = new Path("/embulk");
+        fs.mkdirs(dir);
+        // The quota is less than a block, which HDFS reserves when allocating a block.
+        ((DistributedFileSystem) fs).setQuota(dir, HdfsConstants.QUOTA_DONT_SET, 512L * 1024);
+        ConfigSource config = getBaseConfigSource().set("mode", "overwrite");
+        config.setNested("config", config.getNested("config").set("dfs.blocksize", "1048576"));
+
+        // HDFS throws the quota exceeded exception in the middle of the pipeline without the check.
+        try {
+            run(config);
+            fail("must exceed the quota");
+        }
+        catch (RuntimeException e) {
+            assertTrue(Iterables.any(Throwables.getCausalChain(e), Predicates.instanceOf(QuotaExceededException.class)));
+        }
+
+        try {
+            run(config.set("quota_check", "abort"));
+            fail("must stop before exceeding the quota");
+        }
+        catch (RuntimeException e) {
+            assertTrue(Iterables.any(Throwables.getCausalChain(e), Predicates.instanceOf(DataException.class)));
+            assertFalse(Iterables.any(Throwables.getCausalChain(e), Predicates.instanceOf(QuotaExceededException.class)));
+        }
+    }
+
+    @Test
+    public void testQuotaCheck_replaceChecksOutputDirectory()
+            throws IOException
+    {
+        // The output directory is under another quota root than the workspace, and its namespace quota is used up.
+        Path quotaRoot = new Path("/quota");
+        fs.mkdirs(quotaRoot);
+        ((DistributedFileSystem) fs).setQuota(quotaRoot, 1, HdfsConstants.QUOTA_DONT_SET);
+        ConfigSource config = getBaseConfigSource()
+                .set("path_prefix", "/quota/embulk/out_")
+                .set("mode", "replace")
+                .set("workspace", "/tmp")
+                .set("quota_check", "abort");
+
+        // The task stops before writing to the workspace, instead of failing to move the files at the commit.
+        try {
+            run(config);
+            fail("must stop before exceeding the quota of the output directory");
+        }
+        catch (RuntimeException e) {
+            assertTrue(Iterables.any(Throwables.getCausalChain(e), Predicates.instanceOf(DataException.class)));
+            assertFalse(Iterables.any(Throwables.getCausalChain(e), Predicates.instanceOf(QuotaExceededException.class)));
+        }
+        assertFalse(fs.exists(new Path("/quota/embulk")));
+    }
+
+    @Test
+    public void testVerify_checksum()
+            throws IOException
+    {
+        // The tiny blocks and chunks to verify the checksum of the file of multiple blocks.
+        ConfigSource config = getBaseConfigSource().set("verify", "checksum");
+        config.setNested("config", config.getNested("config")
+                .set("dfs.blocksize", "8")
+                .set("dfs.bytes-per-checksum", "4"));
+
+        run(config);
+
+        Path path = new Path("/embulk/out_000.00.csv");
+        assertTrue(fs.getFileBlockLocations(path, 0, fs.getFileStatus(path).getLen()).length > 1);
+    }
+
+    @Test
+    public void testWriteReplication()
+            throws IOException
+    {
+        ConfigSource config = getBaseConfigSource()
+                .set("write_replication", 1)
+                .set("wait_for_replication", true);
+        config.setNested("config", config.getNested("config").set("dfs.replication", "3"));
+
+        run(config);
+
+        Path path = new Path("/embulk/out_000.00.csv");
+        assertEquals(3, fs.getFileStatus(path).getReplication());
+        for (BlockLocation location : fs.getFileBlockLocations(path, 0, fs.getFileStatus(path).getLen())) {
+            assertEquals(3, location.getHosts().length);
+        }
+    }
+
+    @Test
+    public void testWriteReplication_mapFile()
+            throws IOException
+    {
+        ConfigSource config = getBaseConfigSource()
+                .set("container", "map_file")
+                .set("write_replication", 1);
+        config.setNested("config", config.getNested("config").set("dfs.replication", "3"));
+
+        run(config);
+
+        // The replication is raised for the data and the index in the MapFile directory.
+        Path mapFile = new Path("/embulk/out_000.00.csv.map");
+        assertEquals(3, fs.getFileStatus(new Path(mapFile, MapFile.DATA_FILE_NAME)).getReplication());
+        assertEquals(3, fs.getFileStatus(new Path(mapFile, MapFile.INDEX_FILE_NAME)).getReplication());
+    }
+
+    @Test
+    public void testUseSnapshot_replace()
+            throws IOException
+    {
+        ((DistributedFileSystem) fs).allowSnapshot(new Path("/"));
+        fs.create(new Path("/embulk/old.csv")).close();
+
+        run(getBaseConfigSource()
+                .set("mode", "replace")
+                .set("use_snapshot", true));
+
+        assertTrue(fs.exists(new Path("/embulk/out_000.00.csv")));
+        assertFalse(fs.exists(new Path("/embulk/old.csv")));
+        // The snapshot is deleted after the replace.
+        assertEquals(0, fs.listStatus(new Path("/.snapshot")).length);
+    }
+
+    @Test
+    public void testUseSnapshot_restoreOnFailure()
+            throws IOException
+    {
+        ((DistributedFileSystem) fs).allowSnapshot(new Path("/"));
+        Path path = new Path("/embulk/out_000.00.csv");
+        try (FSDataOutputStream out = fs.create(path)) {
+            out.write("old".getBytes(StandardCharsets.UTF_8));
+        }
+
+        try {
+            run(getBaseConfigSource()
+                    .set("mode", "overwrite")
+                    .set("use_snapshot", true), true);
+            fail("must fail after write");
+        }
+        catch (RuntimeException e) {
+            assertEquals("Failed after write", Throwables.getRootCause(e).getMessage());
+        }
+
+        // The overwritten file is restored from the snapshot.
+        try (FSDataInputStream in = fs.open(path)) {
+            assertEquals("old", new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+        }
+        assertEquals(0, fs.listStatus(new Path("/.snapshot")).length);
+    }
+}
@@ -0,0 +1,323 @@
+package org.embulk.output.hdfs.benchmark;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskReport;
+import org.embulk.config.TaskSource;
+import org.embulk.output.hdfs.HdfsFileOutputPlugin;
+import org.embulk.output.hdfs.util.Parallel;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.FileOutputRunner;
+import org.embulk.spi.OutputPlugin.Control;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TransactionalPageOutput;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+
+// Runs HdfsFileOutputPlugin through FileOutputRunner on an in-process MiniDFSCluster at the configurable scale,
+// and stores the wall time, the NameNode RPC counts and the throughput per mode as JSON.
+//
+// Run with `./gradlew benchmark`. The scale is configured by the system properties, e.g.
+// `./gradlew benchmark -Dbenchmark.tasks=500 -Dbenchmark.rows_per_task=100000 -Dbenchmark.modes=replace`.
+//
+// - benchmark.modes: comma-separated modes to run (default: overwrite,delete_files_in_advance,delete_recursive_in_advance,replace)
+// - benchmark.tasks: number of tasks, and so of files, per run (default: 64)
+// - benchmark.task_threads: number of tasks run concurrently (default: 8)
+// - benchmark.rows_per_task: number of rows per task (default: 10000)
+// - benchmark.row_bytes: bytes of the string column per row (default: 100)
+// - benchmark.datanodes: number of DataNodes (default: 3)
+// - benchmark.filesystem: `hdfs` to write into MiniDFSCluster, or `local` to write into the local disk
+//   without the cluster, e.g. to compare `-Dbenchmark.options=local_fast_path=true` with the default (default: hdfs)
+// - benchmark.options: extra plugin options, like `staging=local,max_open_streams=16` (default: none)
+// - benchmark.output: directory to store the result JSON (default: build/benchmark)
+//
+// Each mode runs twice on the same path, and the second run is measured,
+// because the modes differ in how they remove the files of the previous run.
+public class HdfsFileOutputBenchmark
+{
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private static final Schema SCHEMA = new Schema.Builder()
+            .add("_c0", LONG)
+            .add("_c1", STRING)
+            .build();
+    private static final List<String> NAMENODE_OPERATIONS = ImmutableList.of(
+            "CreateFileOps", "FilesCreated", "DeleteFileOps", "FilesDeleted", "FilesRenamed",
+            "GetListingOps", "FileInfoOps", "AddBlockOps");
+
+    private final List<String> modes = getList("benchmark.modes",
+            "overwrite,delete_files_in_advance,delete_recursive_in_advance,replace");
+    private final int tasks = Integer.getInteger("benchmark.tasks", 64);
+    private final int taskThreads = Integer.getInteger("benchmark.task_threads", 8);
+    private final int rowsPerTask = Integer.getInteger("benchmark.rows_per_task", 10000);
+    private final int rowBytes = Integer.getInteger("benchmark.row_bytes", 100);
+    private final int dataNodes = Integer.getInteger("benchmark.datanodes", 3);
+    private final boolean local = System.getProperty("benchmark.filesystem", "hdfs").equals("local");
+    private final List<String> options = getList("benchmark.options", "");
+    private final File outputDir = new File(System.getProperty("benchmark.output", "build/benchmark"));
+
+    private MiniDFSCluster cluster;
+    private FileSystem fs;
+    private FileOutputRunner runner;
+
+    @Before
+    public void startCluster()
+            throws IOException
+    {
+        Configuration conf = new Configuration();
+        runner = new FileOutputRunner(runtime.getInstance(HdfsFileOutputPlugin.class));
+        if (local) {
+            fs = FileSystem.newInstance(FileSystem.getDefaultUri(conf), conf);
+            return;
+        }
+        conf.set(MiniDFSCluster.HDFS_MINIDFS_BASEDIR, tmpFolder.getRoot().getAbsolutePath());
+        cluster = new MiniDFSCluster.Builder(conf).numDataNodes(dataNodes).build();
+        cluster.waitActive();
+        fs = FileSystem.newInstance(cluster.getURI(), conf);
+    }
+
+    @After
+    public void shutdownCluster()
+            throws IOException
+    {
+        fs.close();
+        if (cluster != null) {
+            cluster.shutdown();
+        }
+    }
+
+    @Test
+    public void benchmark()
+            throws Exception
+    {
+        List<Map<String, Object>> results = Lists.newArrayList();
+        for (String mode : modes) {
+            ConfigSource config = getConfigSource(mode);
+            run(config);
+
+            Map<String, Long> rpcBefore = getNameNodeOperations();
+            long startNanos = System.nanoTime();
+            run(config);
+            long wallNanos = System.nanoTime() - startNanos;
+            Map<String, Long> rpcAfter = getNameNodeOperations();
+
+            long bytes = fs.getContentSummary(getOutputDir(mode)).getLength();
+            double seconds = wallNanos / (double) TimeUnit.SECONDS.toNanos(1);
+            Map<String, Object> result = Maps.newLinkedHashMap();
+            result.put("mode", mode);
+            result.put("wall_time_ms", TimeUnit.NANOSECONDS.toMillis(wallNanos));
+            result.put("files", tasks);
+            result.put("bytes", bytes);
+            result.put("files_per_sec", tasks / seconds);
+            result.put("bytes_per_sec", bytes / seconds);
+            result.put("namenode_rpc", diff(rpcBefore, rpcAfter));
+            System.out.println(String.format("[benchmark] %s", result));
+            results.add(result);
+        }
+        store(results);
+    }
+
+    private ConfigSource getConfigSource(String mode)
+    {
+        ConfigSource config = Exec.newConfigSource()
+                .set("type", "hdfs")
+                .set("path_prefix", new Path(getOutputDir(mode), "out_").toString())
+                .set("file_ext", "csv")
+                .set("mode", mode)
+                .setNested("config", Exec.newConfigSource()
+                        .set("fs.defaultFS", local ? "file:///" : cluster.getURI().toString())
+                        .set("dfs.replication", String.valueOf(Math.min(3, dataNodes))))
+                .setNested("formatter", Exec.newConfigSource()
+                        .set("type", "csv")
+                        .set("charset", "UTF-8"));
+        for (String option : options) {
+            List<String> kv = Splitter.on('=').limit(2).trimResults().splitToList(option);
+            config.set(kv.get(0), kv.get(1));
+        }
+        return config;
+    }
+
+    private Path getOutputDir(String mode)
+    {
+        if (local) {
+            return new Path(new File(tmpFolder.getRoot(), "benchmark").getAbsolutePath(), mode);
+        }
+        return new Path("/benchmark", mode);
+    }
+
+    private void run(ConfigSource config)
+    {
+        runner.transaction(config, SCHEMA, tasks, new Control()
+        {
+            @Override
+            public List<TaskReport> run(final TaskSource taskSource)
+            {
+                final List<TaskReport> reports = Collections.synchronizedList(Lists.<TaskReport>newArrayList());
+                List<Integer> taskIndexes = Lists.newArrayList();
+                for (int i = 0; i < tasks; i++) {
+                    taskIndexes.add(i);
+                }
+                Parallel.forEach("benchmark", taskIndexes, taskThreads, new Parallel.Action<Integer>()
+                {
+                    @Override
+                    public void run(final Integer taskIndex)
+                            throws Exception
+                    {
+                        // Exec is bound to the thread, so each task thread needs the session.
+                        reports.add(Exec.doWith(runtime.getExec(), new ExecAction<TaskReport>()
+                        {
+                            @Override
+                            public TaskReport run()
+                            {
+                                return runTask(taskSource, taskIndex);
+                            }
+                        }));
+                    }
+                });
+                return reports;
+            }
+        });
+    }
+
+    private TaskReport runTask(TaskSource taskSource, int taskIndex)
+    {
+        String value = Strings.repeat("x", rowBytes);
+        TransactionalPageOutput pageOutput = runner.open(taskSource, SCHEMA, taskIndex);
+        TaskReport report = null;
+        try {
+            int batch = 1000;
+            for (int row = 0; row < rowsPerTask; row += batch) {
+                int rows = Math.min(batch, rowsPerTask - row);
+                Object[] values = new Object[rows * 2];
+                for (int i = 0; i < rows; i++) {
+                    values[i * 2] = (long) (row + i);
+                    values[i * 2 + 1] = value;
+                }
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), SCHEMA, values)) {
+                    pageOutput.add(page);
+                }
+            }
+            report = pageOutput.commit();
+        }
+        finally {
+            if (report == null) {
+                pageOutput.abort();
+            }
+            pageOutput.close();
+        }
+        return report;
+    }
+
+    // Reads the operation counters of NameNode and the number of RPCs processed from JMX.
+    private Map<String, Long> getNameNodeOperations()
+            throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Map<String, Long> operations = Maps.newLinkedHashMap();
+        if (local) {
+            return operations;
+        }
+        ObjectName rpc = new ObjectName("Hadoop:service=NameNode,name=RpcActivityForPort" + cluster.getNameNodePort());
+        operations.put("RpcProcessingTimeNumOps", getLong(server, rpc, "RpcProcessingTimeNumOps"));
+        ObjectName activity = new ObjectName("Hadoop:service=NameNode,name=NameNodeActivity");
+        for (String operation : NAMENODE_OPERATIONS) {
+            operations.put(operation, getLong(server, activity, operation));
+        }
+        return operations;
+    }
+
+    private static long getLong(MBeanServer server, ObjectName name, String attribute)
+    {
+        try {
+            return ((Number) server.getAttribute(name, attribute)).longValue();
+        }
+        catch (Exception e) {
+            return -1L;
+        }
+    }
+
+    private static Map<String, Long> diff(Map<String, Long> before, Map<String, Long> after)
+    {
+        Map<String, Long> diff = Maps.newLinkedHashMap();
+        for (Map.Entry<String, Long> entry : after.entrySet()) {
+            Long b = before.get(entry.getKey());
+            diff.put(entry.getKey(), entry.getValue() < 0 || b == null || b < 0 ? -1L : entry.getValue() - b);
+        }
+        return diff;
+    }
+
+    private void store(List<Map<String, Object>> results)
+            throws IOException
+    {
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'", Locale.ENGLISH);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String startedAt = format.format(new Date());
+        String version = System.getProperty("benchmark.version", "unknown");
+
+        Map<String, Object> parameters = Maps.newLinkedHashMap();
+        parameters.put("tasks", tasks);
+        parameters.put("task_threads", taskThreads);
+        parameters.put("rows_per_task", rowsPerTask);
+        parameters.put("row_bytes", rowBytes);
+        parameters.put("datanodes", dataNodes);
+        parameters.put("filesystem", local ? "local" : "hdfs");
+        parameters.put("options", options);
+
+        Map<String, Object> json = Maps.newLinkedHashMap();
+        json.put("version", version);
+        json.put("started_at", startedAt);
+        json.put("parameters", parameters);
+        json.put("results", results);
+
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException(String.format("Failed to make a directory: %s", outputDir));
+        }
+        File file = new File(outputDir, String.format("benchmark-%s-%s.json", version, startedAt));
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, json);
+        System.out.println(String.format("[benchmark] Stored the results: %s", file));
+    }
+
+    private static List<String> getList(String key, String defaultValue)
+    {
+        return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(System.getProperty(key, defaultValue));
+    }
+}
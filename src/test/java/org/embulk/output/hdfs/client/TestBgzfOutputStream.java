@@ -0,0 +1,94 @@
+package org.embulk.output.hdfs.client;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestBgzfOutputStream
+{
+    private static byte[] newData(int length, boolean compressible)
+    {
+        byte[] data = new byte[length];
+        Random random = new Random(0);
+        if (compressible) {
+            for (int i = 0; i < length; i++) {
+                data[i] = (byte) ('a' + random.nextInt(4));
+            }
+        }
+        else {
+            random.nextBytes(data);
+        }
+        return data;
+    }
+
+    private static byte[] gunzip(byte[] compressed, int offset)
+            throws IOException
+    {
+        try (GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed, offset, compressed.length - offset))) {
+            return ByteStreams.toByteArray(in);
+        }
+    }
+
+    private void assertSplittable(byte[] data)
+            throws IOException
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        try (BgzfOutputStream bgzf = new BgzfOutputStream(out, index, Deflater.DEFAULT_COMPRESSION)) {
+            // write in the chunks which do not align with the blocks.
+            for (int off = 0; off < data.length; off += 10000) {
+                bgzf.write(data, off, Math.min(10000, data.length - off));
+            }
+        }
+        byte[] compressed = out.toByteArray();
+
+        // readable as a gzip file.
+        assertArrayEquals(data, gunzip(compressed, 0));
+
+        // readable from each block in the index.
+        int blocks = (data.length + BgzfOutputStream.MAX_DATA_SIZE - 1) / BgzfOutputStream.MAX_DATA_SIZE;
+        assertEquals(blocks * 16, index.size());
+        DataInputStream entries = new DataInputStream(new ByteArrayInputStream(index.toByteArray()));
+        for (int i = 0; i < blocks; i++) {
+            long compressedOffset = entries.readLong();
+            long uncompressedOffset = entries.readLong();
+            assertEquals((long) i * BgzfOutputStream.MAX_DATA_SIZE, uncompressedOffset);
+            assertTrue(compressedOffset < compressed.length);
+            byte[] rest = gunzip(compressed, (int) compressedOffset);
+            assertArrayEquals(Arrays.copyOfRange(data, (int) uncompressedOffset, data.length), rest);
+        }
+    }
+
+    @Test
+    public void testCompressible()
+            throws IOException
+    {
+        assertSplittable(newData(1_000_000, true));
+    }
+
+    @Test
+    public void testIncompressible()
+            throws IOException
+    {
+        assertSplittable(newData(1_000_000, false));
+    }
+
+    @Test
+    public void testEmpty()
+            throws IOException
+    {
+        assertSplittable(new byte[0]);
+    }
+}
@@ -0,0 +1,70 @@
+package org.embulk.output.hdfs.client;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestRpcLimiter
+{
+    @Test
+    public void testRate()
+            throws InterruptedIOException
+    {
+        RpcLimiter limiter = RpcLimiter.getInstance(10);
+        // A burst of the rate does not wait.
+        long waitNanos = 0;
+        for (int i = 0; i < 10; i++) {
+            waitNanos += limiter.acquire(false);
+        }
+        assertTrue(waitNanos < TimeUnit.MILLISECONDS.toNanos(50));
+
+        // The next waits for the refill.
+        assertTrue(limiter.acquire(false) > TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testPriority()
+            throws Exception
+    {
+        final RpcLimiter limiter = RpcLimiter.getInstance(5);
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire(false);
+        }
+
+        final List<String> acquired = Collections.synchronizedList(Lists.<String>newArrayList());
+        Thread normal = newAcquirer(limiter, false, acquired);
+        Thread priority = newAcquirer(limiter, true, acquired);
+        normal.start();
+        Thread.sleep(50);
+        priority.start();
+        normal.join();
+        priority.join();
+
+        assertEquals(Lists.newArrayList("priority", "normal"), acquired);
+    }
+
+    private Thread newAcquirer(final RpcLimiter limiter, final boolean priority, final List<String> acquired)
+    {
+        return new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    limiter.acquire(priority);
+                    acquired.add(priority ? "priority" : "normal");
+                }
+                catch (InterruptedIOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+    }
+}
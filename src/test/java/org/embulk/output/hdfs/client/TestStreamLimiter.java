@@ -0,0 +1,112 @@
+package org.embulk.output.hdfs.client;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestStreamLimiter
+{
+    @Test
+    public void testDecreaseAndIncrease()
+            throws IOException
+    {
+        StreamLimiter limiter = new StreamLimiter(4, 1024, 10);
+        limiter.acquireStream();
+        SleepingOutputStream sleeping = new SleepingOutputStream();
+        OutputStream out = limiter.wrap(sleeping);
+
+        // A slow write halves the limit.
+        sleeping.sleepMillis = 50;
+        out.write(0);
+        assertEquals(2, limiter.getLimit());
+
+        // Fast writes increase the limit by 1 per the limit of writes, up to the max.
+        sleeping.sleepMillis = 0;
+        for (int i = 0; i < 3; i++) {
+            out.write(0);
+        }
+        assertEquals(3, limiter.getLimit());
+        for (int i = 0; i < 100; i++) {
+            out.write(0);
+        }
+        assertEquals(4, limiter.getLimit());
+
+        out.close();
+        assertEquals(0, limiter.getOpenStreams());
+    }
+
+    @Test
+    public void testBlockOverLimit()
+            throws Exception
+    {
+        final StreamLimiter limiter = new StreamLimiter(1, 1024, 1000);
+        limiter.acquireStream();
+        OutputStream out = limiter.wrap(new SleepingOutputStream());
+
+        final AtomicBoolean acquired = new AtomicBoolean(false);
+        Thread waiter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    limiter.acquireStream();
+                    acquired.set(true);
+                }
+                catch (InterruptedIOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        waiter.start();
+        Thread.sleep(100);
+        assertFalse(acquired.get());
+
+        // Closing the stream releases the permit for the waiter.
+        out.close();
+        waiter.join(10000);
+        assertTrue(acquired.get());
+        assertEquals(1, limiter.getOpenStreams());
+        assertEquals(1, limiter.getPeakOpenStreams());
+        limiter.releaseStream();
+    }
+
+    @Test
+    public void testGetInstanceKeepsOpenStreams()
+            throws IOException
+    {
+        StreamLimiter limiter = StreamLimiter.getInstance(2, 1024, 1000);
+        limiter.acquireStream();
+        StreamLimiter reconfigured = StreamLimiter.getInstance(1, 1024, 1000);
+        assertSame(limiter, reconfigured);
+        assertEquals(1, reconfigured.getOpenStreams());
+        assertEquals(1, reconfigured.getLimit());
+        limiter.releaseStream();
+    }
+
+    private static class SleepingOutputStream
+            extends OutputStream
+    {
+        private volatile long sleepMillis = 0;
+
+        @Override
+        public void write(int b)
+                throws IOException
+        {
+            try {
+                Thread.sleep(sleepMillis);
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            }
+        }
+    }
+}
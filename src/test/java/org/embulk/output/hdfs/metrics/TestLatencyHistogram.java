@@ -0,0 +1,47 @@
+package org.embulk.output.hdfs.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestLatencyHistogram
+{
+    @Test
+    public void testIndexOf()
+    {
+        for (long micros = 0; micros < 1_000_000L; micros++) {
+            int index = LatencyHistogram.indexOf(micros);
+            long highest = LatencyHistogram.highestValueOf(index);
+            assertTrue(micros <= highest);
+            assertTrue(highest - micros <= micros / 16);
+        }
+    }
+
+    @Test
+    public void testPercentile()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long millis = 1; millis <= 100; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100_000L, histogram.getMaxMicros());
+        assertEquals(100_000L, histogram.getPercentileMicros(100.0));
+
+        long p50 = histogram.getPercentileMicros(50.0);
+        assertTrue(50_000L <= p50 && p50 <= 50_000L + 50_000L / 16);
+        long p99 = histogram.getPercentileMicros(99.0);
+        assertTrue(99_000L <= p99 && p99 <= 100_000L);
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(99.0));
+        assertEquals(0, histogram.getMaxMicros());
+    }
+}
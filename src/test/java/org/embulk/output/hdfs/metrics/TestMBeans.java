@@ -0,0 +1,39 @@
+package org.embulk.output.hdfs.metrics;
+
+import com.google.common.base.Optional;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMBeans
+{
+    @Test
+    public void testRegisterAndUnregister()
+            throws Exception
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String keyProperties = String.format("type=HdfsFileOutput,task=0,id=test%d", MBeans.nextId());
+        HdfsFileOutputMetrics metrics = new HdfsFileOutputMetrics(0, new HdfsClientMetrics());
+
+        Optional<ObjectName> name = MBeans.register(keyProperties, metrics);
+        assertTrue(name.isPresent());
+        assertTrue(server.isRegistered(name.get()));
+        assertEquals(0, server.getAttribute(name.get(), "TaskIndex"));
+
+        // The name registered by another is not returned, so that it is not unregistered by this.
+        Optional<ObjectName> duplicated = MBeans.register(keyProperties, new HdfsFileOutputMetrics(1, new HdfsClientMetrics()));
+        assertFalse(duplicated.isPresent());
+        MBeans.unregister(duplicated);
+        assertTrue(server.isRegistered(name.get()));
+
+        MBeans.unregister(name);
+        assertFalse(server.isRegistered(name.get()));
+    }
+}
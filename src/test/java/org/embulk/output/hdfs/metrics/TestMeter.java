@@ -0,0 +1,85 @@
+package org.embulk.output.hdfs.metrics;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestMeter
+{
+    @Test
+    public void testRate()
+    {
+        FakeTicker ticker = new FakeTicker();
+        Meter meter = new Meter(ticker);
+        meter.mark(300);
+        meter.mark(200);
+        assertEquals(500, meter.getCount());
+        assertEquals(0.0, meter.getOneMinuteRate(), 0.0);
+
+        // The first tick initializes the rates by the rate of the interval.
+        ticker.advance(5, TimeUnit.SECONDS);
+        assertEquals(100.0, meter.getOneMinuteRate(), 0.001);
+        assertEquals(100.0, meter.getFiveMinuteRate(), 0.001);
+        assertEquals(100.0, meter.getFifteenMinuteRate(), 0.001);
+
+        // The rates decay exponentially by the minutes of them without events.
+        ticker.advance(60, TimeUnit.SECONDS);
+        assertEquals(100.0 * Math.exp(-1), meter.getOneMinuteRate(), 0.001);
+        assertEquals(100.0 * Math.exp(-1.0 / 5), meter.getFiveMinuteRate(), 0.001);
+        assertEquals(100.0 * Math.exp(-1.0 / 15), meter.getFifteenMinuteRate(), 0.001);
+        assertEquals(500, meter.getCount());
+    }
+
+    @Test
+    public void testConcurrentMark()
+            throws InterruptedException
+    {
+        final FakeTicker ticker = new FakeTicker();
+        final Meter meter = new Meter(ticker);
+        List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int j = 0; j < 10000; j++) {
+                        meter.mark(1);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(80000, meter.getCount());
+
+        ticker.advance(5, TimeUnit.SECONDS);
+        assertEquals(16000.0, meter.getOneMinuteRate(), 0.001);
+    }
+
+    private static class FakeTicker
+            extends Ticker
+    {
+        private volatile long nanos = 0;
+
+        void advance(long duration, TimeUnit unit)
+        {
+            nanos += unit.toNanos(duration);
+        }
+
+        @Override
+        public long read()
+        {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.embulk.output.hdfs.util;
+
+import com.google.common.collect.AbstractIterator;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestParallel
+{
+    @Test
+    public void testForEachIterator()
+    {
+        final AtomicInteger sum = new AtomicInteger();
+        Parallel.forEach("test", new CountingIterator(100), 4, new Parallel.Action<Integer>()
+        {
+            @Override
+            public void run(Integer item)
+            {
+                sum.addAndGet(item);
+            }
+        });
+        assertEquals(4950, sum.get());
+    }
+
+    @Test
+    public void testForEachIteratorBoundsPendingItems()
+            throws Exception
+    {
+        final int threads = 2;
+        final CountingIterator items = new CountingIterator(100);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger processed = new AtomicInteger();
+        Thread runner = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Parallel.forEach("test", items, threads, new Parallel.Action<Integer>()
+                {
+                    @Override
+                    public void run(Integer item)
+                            throws Exception
+                    {
+                        release.await();
+                        processed.incrementAndGet();
+                    }
+                });
+            }
+        });
+        runner.start();
+        Thread.sleep(200);
+
+        // While the actions are blocked, the items taken from the iterator are bounded by twice the threads,
+        // plus the one waiting for a permit.
+        assertTrue(items.taken.get() <= threads * 2 + 1);
+
+        release.countDown();
+        runner.join(10000);
+        assertEquals(100, items.taken.get());
+        assertEquals(100, processed.get());
+    }
+
+    @Test
+    public void testForEachIteratorRethrowsFirstFailure()
+    {
+        final RuntimeException failure = new RuntimeException("failure on 3");
+        final AtomicInteger processed = new AtomicInteger();
+        CountingIterator items = new CountingIterator(100);
+        try {
+            Parallel.forEach("test", items, 1, new Parallel.Action<Integer>()
+            {
+                @Override
+                public void run(Integer item)
+                {
+                    if (item == 3) {
+                        throw failure;
+                    }
+                    if (item > 3) {
+                        throw new RuntimeException("must be skipped after the failure: " + item);
+                    }
+                    processed.incrementAndGet();
+                }
+            });
+            fail("must rethrow the failure");
+        }
+        catch (RuntimeException e) {
+            assertSame(failure, e);
+        }
+        // The remaining items are skipped, and the iterator is not consumed to the end.
+        assertEquals(3, processed.get());
+        assertTrue(items.taken.get() < 100);
+    }
+
+    @Test
+    public void testForEachIteratorWrapsCheckedFailure()
+    {
+        final Exception failure = new Exception("checked failure");
+        try {
+            Parallel.forEach("test", new CountingIterator(10), 2, new Parallel.Action<Integer>()
+            {
+                @Override
+                public void run(Integer item)
+                        throws Exception
+                {
+                    throw failure;
+                }
+            });
+            fail("must rethrow the failure");
+        }
+        catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+    }
+
+    private static class CountingIterator
+            extends AbstractIterator<Integer>
+    {
+        private final int size;
+        private final AtomicInteger taken = new AtomicInteger();
+
+        private CountingIterator(int size)
+        {
+            this.size = size;
+        }
+
+        @Override
+        protected Integer computeNext()
+        {
+            int next = taken.get();
+            if (next >= size) {
+                return endOfData();
+            }
+            taken.incrementAndGet();
+            return next;
+        }
+    }
+}